@@ -0,0 +1,27 @@
+package code.commit;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.support.SpringBootServletInitializer;
+
+/**
+ * The spring boot application, which runs standalone or as a war in a servlet
+ * container.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+@SpringBootApplication
+public class CommitApplication extends SpringBootServletInitializer {
+
+    public static void main(String[] args) {
+        SpringApplication.run(CommitApplication.class, args);
+    }
+
+    @Override
+    protected SpringApplicationBuilder configure(SpringApplicationBuilder builder) {
+        return builder.sources(CommitApplication.class);
+    }
+}
@@ -0,0 +1,199 @@
+package code.commit.gitlab;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.util.Assert;
+
+import code.commit.CodeCommitOperation;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * An asynchronous commit operation.
+ * <p>
+ * The commits to the same branch are sent in the order of submission, and
+ * the commits to different branches or repositories are sent in parallel, at
+ * most <code>maxConcurrency</code> at a time. The ordering is kept by chaining
+ * each commit to the former one of its branch, so there is no global lock.
+ * A commit takes a permit of the concurrency before it is handed to the
+ * executor, so no thread of the executor is blocked waiting for a permit.
+ * <p>
+ * By default the commits run on virtual threads on JDK 21 or above, and on a
+ * fixed thread pool of <code>maxConcurrency</code> threads otherwise.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+@Slf4j
+public class AsyncCommitOperation implements CodeCommitOperation {
+
+    private final GithubCommitOperation delegate;
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final Deque<CompletableFuture<Void>> permitWaiters = new ArrayDeque<>();
+    private int permits;
+    private final ConcurrentMap<String, CompletableFuture<CommitResult>> tails = new ConcurrentHashMap<>();
+
+    /**
+     * @param delegate
+     *            the operation which sends the commits
+     * @param maxConcurrency
+     *            the max number of commits sent at the same time
+     */
+    public AsyncCommitOperation(GithubCommitOperation delegate, int maxConcurrency) {
+        Assert.notNull(delegate, "The delegate operation must not be null!");
+        Assert.isTrue(maxConcurrency > 0, "The max concurrency must be positive!");
+        this.delegate = delegate;
+        this.ownedExecutor = createDefaultExecutor(maxConcurrency);
+        this.executor = this.ownedExecutor;
+        this.permits = maxConcurrency;
+    }
+
+    /**
+     * @param delegate
+     *            the operation which sends the commits
+     * @param executor
+     *            the executor which runs the commits, it is not shut down by
+     *            this operation
+     * @param maxConcurrency
+     *            the max number of commits sent at the same time
+     */
+    public AsyncCommitOperation(GithubCommitOperation delegate, Executor executor, int maxConcurrency) {
+        Assert.notNull(delegate, "The delegate operation must not be null!");
+        Assert.notNull(executor, "The executor must not be null!");
+        Assert.isTrue(maxConcurrency > 0, "The max concurrency must be positive!");
+        this.delegate = delegate;
+        this.ownedExecutor = null;
+        this.executor = executor;
+        this.permits = maxConcurrency;
+    }
+
+    /**
+     * Submit the commit and wait until it is committed.
+     */
+    @Override
+    public void doAction(CommitInput commitInput) {
+        join(this.submit(commitInput));
+    }
+
+    /**
+     * Submit the commit, which is sent after the former commits to the same
+     * branch.
+     *
+     * @param commitInput
+     *            the commit
+     * @return the new commit
+     */
+    public CompletableFuture<CommitResult> submit(CommitInput commitInput) {
+        Assert.notNull(commitInput, "The commit input must not be null!");
+        String key = commitInput.getOwner() + "/" + commitInput.getRepoName() + ":" + commitInput.getBranch();
+        CompletableFuture<CommitResult> next = this.tails.compute(key, (k, tail) -> {
+            CompletableFuture<?> former = (tail == null) ? CompletableFuture.completedFuture(null) : tail;
+            // the next commit is sent no matter whether the former one failed
+            return former.handle((r, e) -> null)
+                    .thenCompose(v -> this.acquire())
+                    .thenApplyAsync(v -> this.delegate.commit(commitInput), this.executor)
+                    .whenComplete((r, e) -> this.release());
+        });
+        next.whenComplete((r, e) -> this.tails.remove(key, next));
+        return next;
+    }
+
+    /**
+     * Submit the commits, e.g. the same change list to many repositories.
+     *
+     * @param commitInputs
+     *            the commits
+     * @return the new commits, in the order of the inputs
+     */
+    public List<CompletableFuture<CommitResult>> submitAll(Collection<CommitInput> commitInputs) {
+        List<CompletableFuture<CommitResult>> results = new ArrayList<>(commitInputs.size());
+        commitInputs.forEach(item -> results.add(this.submit(item)));
+        return results;
+    }
+
+    /**
+     * Stop the default executor after the submitted commits are sent.
+     */
+    public void shutdown() {
+        if (this.ownedExecutor != null) {
+            this.ownedExecutor.shutdown();
+        }
+    }
+
+    /**
+     * @return completed once a permit is taken
+     */
+    private CompletableFuture<Void> acquire() {
+        synchronized (this.permitWaiters) {
+            if (this.permits > 0) {
+                this.permits--;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> waiter = new CompletableFuture<>();
+            this.permitWaiters.addLast(waiter);
+            return waiter;
+        }
+    }
+
+    private void release() {
+        CompletableFuture<Void> waiter;
+        synchronized (this.permitWaiters) {
+            waiter = this.permitWaiters.pollFirst();
+            if (waiter == null) {
+                this.permits++;
+                return;
+            }
+        }
+        // the permit is handed over to the waiting commit
+        waiter.complete(null);
+    }
+
+    /**
+     * Wait for the commit and rethrow its failure.
+     */
+    static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new GithubRemoteRepositoryOperationException("Failed to commit to github", e.getCause());
+        }
+    }
+
+    /**
+     * Use virtual threads if the runtime supports them, the source level is
+     * JDK 8 so they are looked up by reflection.
+     */
+    private static ExecutorService createDefaultExecutor(int maxConcurrency) {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Virtual threads are not supported, use a pool of {} threads.", maxConcurrency);
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(maxConcurrency, r -> {
+            Thread t = new Thread(r, "async-commit-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
@@ -0,0 +1,123 @@
+package code.commit.gitlab;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.util.Assert;
+
+/**
+ * The cache of the head oid of branches, keyed by owner, repository and
+ * branch. The entries expire after the ttl, and the least recently used entry
+ * is evicted when the cache is full.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+public class BranchHeadCache {
+
+    private final long ttlNanos;
+    private final Map<String, Head> heads;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong staleCount = new AtomicLong();
+
+    /**
+     * @param ttl
+     *            the time to live of each entry
+     * @param maxSize
+     *            the max number of cached branches
+     */
+    public BranchHeadCache(Duration ttl, int maxSize) {
+        Assert.isTrue(ttl != null && !ttl.isNegative(), "The ttl must not be negative!");
+        Assert.isTrue(maxSize > 0, "The max size must be positive!");
+        this.ttlNanos = ttl.toNanos();
+        this.heads = new LinkedHashMap<String, Head>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Head> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return the cached head oid, or null if absent or expired
+     */
+    public String get(String owner, String repoName, String branch) {
+        String key = keyOf(owner, repoName, branch);
+        Head head;
+        synchronized (this.heads) {
+            head = this.heads.get(key);
+            if (head != null && System.nanoTime() - head.cachedAt > this.ttlNanos) {
+                this.heads.remove(key);
+                head = null;
+            }
+        }
+        if (head == null) {
+            this.missCount.incrementAndGet();
+            return null;
+        }
+        this.hitCount.incrementAndGet();
+        return head.oid;
+    }
+
+    public void put(String owner, String repoName, String branch, String oid) {
+        Head head = new Head(oid, System.nanoTime());
+        synchronized (this.heads) {
+            this.heads.put(keyOf(owner, repoName, branch), head);
+        }
+    }
+
+    public void invalidate(String owner, String repoName, String branch) {
+        synchronized (this.heads) {
+            this.heads.remove(keyOf(owner, repoName, branch));
+        }
+    }
+
+    /**
+     * Invalidate the entry whose cached oid has been rejected by github.
+     */
+    public void markStale(String owner, String repoName, String branch) {
+        this.staleCount.incrementAndGet();
+        invalidate(owner, repoName, branch);
+    }
+
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    public long getStaleCount() {
+        return this.staleCount.get();
+    }
+
+    public int size() {
+        synchronized (this.heads) {
+            return this.heads.size();
+        }
+    }
+
+    /**
+     * A branch name can not contain ':', so the key is unique.
+     */
+    private static String keyOf(String owner, String repoName, String branch) {
+        return owner + "/" + repoName + ":" + branch;
+    }
+
+    private static class Head {
+        final String oid;
+        final long cachedAt;
+
+        Head(String oid, long cachedAt) {
+            this.oid = oid;
+            this.cachedAt = cachedAt;
+        }
+    }
+}
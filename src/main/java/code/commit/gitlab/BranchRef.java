@@ -0,0 +1,19 @@
+package code.commit.gitlab;
+
+import lombok.Value;
+
+/**
+ * A branch of a repository, e.g. the key of the heads looked up by
+ * {@link GithubCommitOperation#lookupHeads}.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+@Value(staticConstructor = "of")
+public class BranchRef {
+
+    String owner;
+    String repoName;
+    String branch;
+}
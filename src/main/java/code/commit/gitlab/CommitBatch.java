@@ -0,0 +1,92 @@
+package code.commit.gitlab;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * The manifest of the commits run by {@link CommitBatchCommand}, in json or
+ * yaml.
+ * <p>
+ * e.g: <br>
+ * <pre>
+ * token: ghp_xxx            # or the environment variable GITHUB_TOKEN
+ * parallelism: 4
+ * commits:
+ *   - owner: zhwlin
+ *     repo: demo
+ *     branch: main
+ *     message: Publish the site
+ *     directory: build/site  # all files, under the prefix
+ *     prefix: docs
+ *     files:                 # relative path: local file
+ *       README.md: build/README.md
+ *     deletions: [ old.md ]
+ * </pre>
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+@Accessors(chain = true)
+@Data
+public class CommitBatch {
+
+    /**
+     * The url of the graphql api, null means github.
+     */
+    String endpoint;
+
+    /**
+     * The token of the commits without their own, null means the environment
+     * variable <code>GITHUB_TOKEN</code>.
+     */
+    String token;
+
+    /**
+     * The number of branches committed at the same time, the commits of one
+     * branch are sent in the order of the manifest.
+     */
+    int parallelism = 1;
+
+    boolean gzipRequest;
+
+    boolean skipUnchangedFiles;
+
+    List<Commit> commits = new ArrayList<>();
+
+    @Accessors(chain = true)
+    @Data
+    public static class Commit {
+
+        String owner;
+        String repo;
+        String branch;
+        String token;
+        String message;
+        String body;
+
+        /**
+         * The local directory whose files are all committed.
+         */
+        String directory;
+
+        /**
+         * The relative path of the directory in the repository.
+         */
+        String prefix = "";
+
+        /**
+         * The relative paths of the update files in the repository and their
+         * local files.
+         */
+        Map<String, String> files = new LinkedHashMap<>();
+
+        List<String> deletions = Collections.emptyList();
+    }
+}
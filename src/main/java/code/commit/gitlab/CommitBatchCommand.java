@@ -0,0 +1,171 @@
+package code.commit.gitlab;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.util.Assert;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The command which runs the commits of a {@link CommitBatch} manifest in one
+ * jvm, without the spring context, e.g. a stage of a ci pipeline. The
+ * requests are sent by {@link UrlConnectionGraphqlTransport}. Of spring, only
+ * a few utilities of spring-core are loaded, e.g. <code>Assert</code> and
+ * <code>DataSize</code>, nothing of spring-web.
+ * <p>
+ * The time from the start of the jvm to running the first commit, the time of
+ * every commit and the total time are printed. The exit code is 0 if all
+ * commits succeed, 1 if any fails, and 2 if the manifest is invalid.
+ * <p>
+ * e.g: <code>gradle commitBatch -Pmanifest=commits.yml</code>
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+public class CommitBatchCommand {
+
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Usage: CommitBatchCommand <manifest.json|manifest.yml>");
+            System.exit(2);
+        }
+        System.exit(run(Paths.get(args[0]), System.out));
+    }
+
+    /**
+     * @return the exit code
+     */
+    static int run(Path manifestFile, PrintStream out) {
+        long startNanos = System.nanoTime();
+        List<List<CommitInput>> branches = new ArrayList<>();
+        CommitBatch batch;
+        int total;
+        try {
+            batch = load(manifestFile);
+            Assert.isTrue(batch.getParallelism() > 0, "The parallelism must be positive!");
+            Assert.notEmpty(batch.getCommits(), "The manifest has no commits!");
+            total = groupByBranch(batch, branches);
+        } catch (IOException | RuntimeException e) {
+            out.println("Invalid manifest " + manifestFile + ": " + e.getMessage());
+            return 2;
+        }
+        GithubCommitOptions options = new GithubCommitOptions()
+                .setGzipRequest(batch.isGzipRequest())
+                .setSkipUnchangedFiles(batch.isSkipUnchangedFiles());
+        if (batch.getEndpoint() != null) {
+            options.setEndpoint(batch.getEndpoint());
+        }
+        GraphqlTransport transport = new UrlConnectionGraphqlTransport(options);
+        GithubCommitOperation operation = new GithubCommitOperation(options.setTransport(transport));
+        out.printf("Started %d commits on %d branches in %d ms since the jvm started%n", total, branches.size(),
+                ManagementFactory.getRuntimeMXBean().getUptime());
+
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(batch.getParallelism(), branches.size()),
+                r -> {
+                    Thread t = new Thread(r, "commit-batch");
+                    t.setDaemon(true);
+                    return t;
+                });
+        for (List<CommitInput> inputs : branches) {
+            // the next commit of the branch is sent no matter whether the former one failed
+            executor.execute(() -> inputs.forEach(input -> {
+                if (!commit(operation, input, out)) {
+                    failed.incrementAndGet();
+                }
+            }));
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        transport.close();
+        out.printf("%d commits, %d failed, in %d ms%n", total, failed.get(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        return failed.get() == 0 ? 0 : 1;
+    }
+
+    private static boolean commit(GithubCommitOperation operation, CommitInput input, PrintStream out) {
+        String target = input.getOwner() + "/" + input.getRepoName() + ":" + input.getBranch();
+        long start = System.nanoTime();
+        String outcome;
+        boolean success = false;
+        try {
+            CommitResult result = operation.commit(input);
+            outcome = result.isSkipped() ? "skipped" : result.getOid();
+            success = true;
+        } catch (RuntimeException e) {
+            outcome = "FAILED " + e.getMessage();
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        synchronized (out) {
+            out.printf("%s %s %d ms: %s%n", target, outcome, millis, input.getCommitMsgHeader());
+        }
+        return success;
+    }
+
+    static CommitBatch load(Path manifestFile) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        String name = manifestFile.getFileName().toString();
+        if (name.endsWith(".yml") || name.endsWith(".yaml")) {
+            try (Reader reader = Files.newBufferedReader(manifestFile, StandardCharsets.UTF_8)) {
+                Object tree = new Yaml(new SafeConstructor()).load(reader);
+                return mapper.convertValue(tree, CommitBatch.class);
+            }
+        }
+        return mapper.readValue(manifestFile.toFile(), CommitBatch.class);
+    }
+
+    /**
+     * Build the commits, grouped by their branches in the order of the
+     * manifest, and the files are checked up front.
+     *
+     * @return the number of the commits
+     */
+    private static int groupByBranch(CommitBatch batch, List<List<CommitInput>> branches) {
+        String defaultToken = batch.getToken() != null ? batch.getToken() : System.getenv("GITHUB_TOKEN");
+        Map<String, List<CommitInput>> groups = new LinkedHashMap<>();
+        for (CommitBatch.Commit commit : batch.getCommits()) {
+            SourceFilesChangeListBuilder changes = SourceFilesChangeListBuilder.create();
+            if (commit.getDirectory() != null) {
+                changes.addDirectory(Paths.get(commit.getDirectory()), commit.getPrefix(), null);
+            }
+            commit.getFiles().forEach((relativePath, file) -> changes.addUpdateFile(Paths.get(file), relativePath));
+            commit.getDeletions().forEach(changes::addDeleteFile);
+            String token = commit.getToken() != null ? commit.getToken() : defaultToken;
+            Assert.hasLength(token, "No token of the commit to " + commit.getOwner() + "/" + commit.getRepo());
+            CommitInput input = new CommitInput()
+                    .setOwner(commit.getOwner())
+                    .setRepoName(commit.getRepo())
+                    .setBranch(commit.getBranch())
+                    .setUserToken(token)
+                    .setCommitMsgHeader(commit.getMessage())
+                    .setCommitMsgBody(commit.getBody() != null ? commit.getBody() : changes.getChangeList())
+                    .setChangeList(changes);
+            String key = input.getOwner() + "/" + input.getRepoName() + ":" + input.getBranch();
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(input);
+        }
+        branches.addAll(groups.values());
+        return batch.getCommits().size();
+    }
+}
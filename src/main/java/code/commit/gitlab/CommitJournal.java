@@ -0,0 +1,388 @@
+package code.commit.gitlab;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.zip.CRC32;
+
+import org.springframework.util.Assert;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The append-only log of {@link JournaledCommitOperation}, in a directory of
+ * segment files named by the sequence of their first record, and a
+ * checkpoint file of the sequence of the last drained record.
+ * <p>
+ * A record is <b>{length} {crc32} {sequence} {payload}</b>, the length and
+ * the crc32 of the sequence and the payload are 4-byte integers, and the
+ * sequence is an 8-byte integer. A batch of records is written and forced to
+ * the disk at once. A torn record at the end of the last segment, written
+ * when the process died, is truncated on recovery.
+ * <p>
+ * The records of a failed append are truncated, as they are not
+ * acknowledged. If the segment can not be truncated, the next append starts
+ * a new segment at their sequences, and the records left in the former
+ * segment are ignored since a record is read from the last segment starting
+ * at or before its sequence.
+ * <p>
+ * The records which can never be committed are moved to a dead letter file
+ * in the same format, to be inspected and appended again by hand.
+ * <p>
+ * The records are appended by one thread and read by another, the segments
+ * whose records are all drained are deleted by the reader.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+@Slf4j
+class CommitJournal implements Closeable {
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String CHECKPOINT = "checkpoint";
+    static final String DEAD_LETTER = "dead-letter";
+    private static final int HEADER_SIZE = 16;
+
+    private final Path directory;
+    private final long maxSegmentSize;
+    /**
+     * The first sequences of the segments, shared by the writer and the
+     * reader.
+     */
+    private final NavigableSet<Long> segments = new ConcurrentSkipListSet<>();
+    private FileChannel writeChannel;
+    private Path writeSegment;
+    private long lastSeq;
+    private long checkpoint;
+    private FileChannel readChannel;
+    private long readSegmentSeq;
+    private long readPosition;
+
+    /**
+     * Recover the journal in the directory, which is created if absent.
+     */
+    CommitJournal(Path directory, long maxSegmentSize) throws IOException {
+        Assert.isTrue(maxSegmentSize > 0, "The max segment size must be positive!");
+        this.directory = Files.createDirectories(directory);
+        this.maxSegmentSize = maxSegmentSize;
+        Path checkpointFile = directory.resolve(CHECKPOINT);
+        if (Files.exists(checkpointFile)) {
+            this.checkpoint = Long.parseLong(new String(Files.readAllBytes(checkpointFile),
+                    StandardCharsets.US_ASCII).trim());
+        }
+        this.lastSeq = this.checkpoint;
+        List<Path> files = listSegments();
+        for (int i = 0; i < files.size(); i++) {
+            boolean last = i == files.size() - 1;
+            recover(files.get(i), last ? Long.MAX_VALUE : firstSeqOf(files.get(i + 1)));
+            this.segments.add(firstSeqOf(files.get(i)));
+        }
+        if (!files.isEmpty()) {
+            this.writeSegment = files.get(files.size() - 1);
+            this.writeChannel = openSegment(this.writeSegment, StandardOpenOption.WRITE);
+            this.writeChannel.position(this.writeChannel.size());
+        }
+        log.info("Recovered commit journal {}, checkpoint: {}, last: {}", directory, this.checkpoint, this.lastSeq);
+    }
+
+    long getLastSeq() {
+        return this.lastSeq;
+    }
+
+    long getCheckpoint() {
+        return this.checkpoint;
+    }
+
+    /**
+     * Append the payloads, with the sequences following the last one, and
+     * force them to the disk. Nothing is appended if it fails.
+     *
+     * @return the sequence of the last payload
+     */
+    long append(List<byte[]> payloads) throws IOException {
+        if (this.writeChannel == null || this.writeChannel.size() >= this.maxSegmentSize) {
+            if (this.writeChannel != null) {
+                this.writeChannel.close();
+            }
+            Path segment = segmentOf(this.lastSeq + 1);
+            this.writeChannel = openSegment(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            this.writeSegment = segment;
+            this.segments.add(this.lastSeq + 1);
+            // the new segment is only found after a crash if its directory entry is durable
+            forceDirectory();
+        }
+        ByteBuffer[] buffers = new ByteBuffer[payloads.size() * 2];
+        long seq = this.lastSeq;
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < payloads.size(); i++) {
+            ByteBuffer payload = ByteBuffer.wrap(payloads.get(i));
+            buffers[2 * i] = header(++seq, payload, crc);
+            buffers[2 * i + 1] = payload;
+        }
+        long position = this.writeChannel.position();
+        try {
+            write(this.writeChannel, buffers);
+            this.writeChannel.force(false);
+        } catch (IOException e) {
+            discard(position);
+            throw e;
+        }
+        this.lastSeq = seq;
+        return seq;
+    }
+
+    /**
+     * Truncate the records of a failed append, or start a new segment on the
+     * next append if the segment can not be truncated.
+     */
+    private void discard(long position) {
+        try {
+            this.writeChannel.truncate(position);
+            this.writeChannel.position(position);
+            return;
+        } catch (IOException e) {
+            log.warn("Failed to truncate the failed append at {} of {}, start a new segment.", position,
+                    this.writeSegment, e);
+        }
+        try {
+            this.writeChannel.close();
+            if (position == 0) {
+                // the new segment is named the same as this one
+                this.segments.remove(this.lastSeq + 1);
+                Files.deleteIfExists(this.writeSegment);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to close the segment {}.", this.writeSegment, e);
+        }
+        this.writeChannel = null;
+    }
+
+    /**
+     * Read the record after the former one read, which must have been
+     * appended.
+     *
+     * @param seq
+     *            the sequence of the record
+     * @return the payload
+     */
+    ByteBuffer read(long seq) throws IOException {
+        while (true) {
+            if (this.readChannel != null) {
+                Long next = this.segments.higher(this.readSegmentSeq);
+                if (next != null && next <= seq) {
+                    this.readChannel.close();
+                    this.readChannel = null;
+                }
+            }
+            if (this.readChannel == null) {
+                openReadSegment(seq);
+            }
+            ByteBuffer record = readRecord(this.readChannel, this.readPosition);
+            Assert.state(record != null, "The record " + seq + " is missing in the journal!");
+            this.readPosition += 8 + record.remaining();
+            long recordSeq = record.getLong();
+            if (recordSeq == seq) {
+                return record.slice();
+            }
+            Assert.state(recordSeq < seq, "The record " + seq + " is missing in the journal!");
+        }
+    }
+
+    /**
+     * Append the record to the dead letter file, and force it to the disk.
+     *
+     * @param payload
+     *            the payload read from the journal
+     */
+    void deadLetter(long seq, ByteBuffer payload) throws IOException {
+        try (FileChannel channel = FileChannel.open(this.directory.resolve(DEAD_LETTER), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer content = payload.duplicate();
+            write(channel, new ByteBuffer[] { header(seq, content, new CRC32()), content });
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Save the sequence of the last drained record, atomically.
+     */
+    void checkpoint(long seq) throws IOException {
+        Path tmp = this.directory.resolve(CHECKPOINT + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer writer = Channels.newWriter(channel, StandardCharsets.US_ASCII.newEncoder(), 32);
+            writer.write(Long.toString(seq));
+            writer.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, this.directory.resolve(CHECKPOINT), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        this.checkpoint = seq;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.writeChannel != null) {
+            this.writeChannel.close();
+        }
+        if (this.readChannel != null) {
+            this.readChannel.close();
+        }
+    }
+
+    /**
+     * Open the last segment starting at or before the sequence, and delete
+     * the former segments.
+     */
+    private void openReadSegment(long seq) throws IOException {
+        Long first = this.segments.floor(seq);
+        Assert.state(first != null, "The record " + seq + " is missing in the journal!");
+        for (Long former : this.segments.headSet(first)) {
+            Files.delete(segmentOf(former));
+            this.segments.remove(former);
+        }
+        this.readSegmentSeq = first;
+        this.readChannel = FileChannel.open(segmentOf(first), StandardOpenOption.READ);
+        this.readPosition = 0;
+    }
+
+    /**
+     * Check the records of the segment before the next segment, and truncate
+     * a torn record at the end of the last segment.
+     *
+     * @param nextSeq
+     *            the first sequence of the next segment, or
+     *            <code>Long.MAX_VALUE</code> for the last segment
+     */
+    private void recover(Path segment, long nextSeq) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long position = 0;
+            ByteBuffer record;
+            while ((record = readRecord(channel, position)) != null) {
+                long seq = record.getLong();
+                if (seq >= nextSeq) {
+                    break;
+                }
+                Assert.state(this.lastSeq == this.checkpoint && seq <= this.lastSeq + 1 || seq == this.lastSeq + 1,
+                        "The journal is not continuous at " + seq + ": " + segment);
+                this.lastSeq = Math.max(this.lastSeq, seq);
+                position += 8 + record.limit();
+            }
+            if (nextSeq != Long.MAX_VALUE) {
+                // the drained records of a segment may be left if it was deleted just before a crash
+                Assert.state(this.lastSeq >= nextSeq - 1, "The journal is not continuous at " + nextSeq + ": "
+                        + segment);
+                if (position < channel.size()) {
+                    log.warn("Ignore the records of a failed append after {} of {}", position, segment);
+                }
+            } else if (position < channel.size()) {
+                log.warn("Truncate the torn record at {} of {}", position, segment);
+                channel.truncate(position);
+                channel.force(true);
+            }
+        }
+    }
+
+    /**
+     * Open the channel of a segment to append, overridden to inject failures
+     * in the tests.
+     */
+    FileChannel openSegment(Path segment, OpenOption... options) throws IOException {
+        return FileChannel.open(segment, options);
+    }
+
+    private Path segmentOf(long firstSeq) {
+        return this.directory.resolve(String.format("%020d%s", firstSeq, SEGMENT_SUFFIX));
+    }
+
+    private static ByteBuffer header(long seq, ByteBuffer payload, CRC32 crc) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(8 + payload.remaining()).putInt(0).putLong(seq).flip();
+        crc.reset();
+        crc.update(header.array(), 8, 8);
+        crc.update(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+        header.putInt(4, (int) crc.getValue());
+        return header;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+        for (int i = 0; i < buffers.length; i++) {
+            while (buffers[i].hasRemaining()) {
+                channel.write(buffers, i, buffers.length - i);
+            }
+        }
+    }
+
+    /**
+     * @return the sequence and the payload of the record, or null if there is
+     *         not a whole valid record at the position
+     */
+    private static ByteBuffer readRecord(FileChannel channel, long position) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        if (readFully(channel, header, position) < 8) {
+            return null;
+        }
+        int length = header.getInt(0);
+        if (length < 8 || length > channel.size() - position - 8) {
+            return null;
+        }
+        ByteBuffer record = ByteBuffer.allocate(length);
+        if (readFully(channel, record, position + 8) < length) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, length);
+        if ((int) crc.getValue() != header.getInt(4)) {
+            return null;
+        }
+        record.flip();
+        return record;
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> items = Files.newDirectoryStream(this.directory, "*" + SEGMENT_SUFFIX)) {
+            items.forEach(segments::add);
+        }
+        segments.sort((a, b) -> Long.compare(firstSeqOf(a), firstSeqOf(b)));
+        return segments;
+    }
+
+    private static long firstSeqOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private void forceDirectory() {
+        // not supported on every platform, e.g. windows
+        try (FileChannel channel = FileChannel.open(this.directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.debug("Failed to force the journal directory.", e);
+        }
+    }
+}
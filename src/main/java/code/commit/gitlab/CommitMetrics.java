@@ -0,0 +1,229 @@
+package code.commit.gitlab;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.util.Assert;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+
+/**
+ * The micrometer meters of the commit pipeline, tagged by repository and
+ * branch.
+ * <ul>
+ * <li><b>github.commit</b>: the timer of commits, by result</li>
+ * <li><b>github.commit.phase</b>: the timer of the phases, by phase</li>
+ * <li><b>github.commit.request.bytes</b>,
+ * <b>github.commit.response.bytes</b>: the sizes of the graphql
+ * requests and responses</li>
+ * <li><b>github.commit.files</b>: the number of changed files of a
+ * commit</li>
+ * <li><b>github.commit.errors</b>: the failed requests, by type</li>
+ * <li><b>github.commit.retries</b>, <b>github.commit.retries.wasted</b>: the
+ * commits retried because the branch had been moved, and the bytes of the
+ * rejected requests</li>
+ * </ul>
+ * The phases of writing a request body are measured inside the streaming:
+ * <b>send</b> is the time of writing to the connection, <b>file_read</b> the
+ * time of reading the files, and <b>encode</b> the rest. When the files are
+ * encoded in parallel, <b>file_read</b> is summed over the encoding threads,
+ * and <b>encode</b> is the time of the writer waiting for them. <b>wait</b> is
+ * the rest of the exchange until the response is read, including the time of
+ * waiting for the rate limit.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+public class CommitMetrics {
+
+    public static final String METER_COMMIT = "github.commit";
+    public static final String METER_PHASE = "github.commit.phase";
+    public static final String METER_REQUEST_BYTES = "github.commit.request.bytes";
+    public static final String METER_RESPONSE_BYTES = "github.commit.response.bytes";
+    public static final String METER_FILES = "github.commit.files";
+    public static final String METER_ERRORS = "github.commit.errors";
+    public static final String METER_RETRIES = "github.commit.retries";
+    public static final String METER_RETRIES_WASTED = "github.commit.retries.wasted";
+
+    static final String PHASE_HEAD_LOOKUP = "head_lookup";
+    static final String PHASE_BLOB_LOOKUP = "blob_lookup";
+    static final String PHASE_SERIALIZE = "serialize";
+    static final String PHASE_FILE_READ = "file_read";
+    static final String PHASE_ENCODE = "encode";
+    static final String PHASE_SEND = "send";
+    static final String PHASE_WAIT = "wait";
+    static final String PHASE_PARSE = "parse";
+
+    private final MeterRegistry registry;
+
+    /**
+     * @param registry
+     *            the registry of the meters
+     */
+    public CommitMetrics(MeterRegistry registry) {
+        Assert.notNull(registry, "The meter registry must not be null!");
+        this.registry = registry;
+    }
+
+    static Tags tagsOf(String repoNameWithOwner, String branch) {
+        return Tags.of("repo", String.valueOf(repoNameWithOwner), "branch", String.valueOf(branch));
+    }
+
+    /**
+     * Register the meters of the caches, the rate limit scheduler and the payload
+     * budget.
+     */
+    void bind(BranchHeadCache headCache, EncodedContentCache contentCache, RateLimitScheduler rateLimitScheduler,
+            PayloadBudget payloadBudget) {
+        if (headCache != null) {
+            FunctionCounter.builder("github.commit.head.cache", headCache, BranchHeadCache::getHitCount)
+                    .tag("result", "hit").register(this.registry);
+            FunctionCounter.builder("github.commit.head.cache", headCache, BranchHeadCache::getMissCount)
+                    .tag("result", "miss").register(this.registry);
+            FunctionCounter.builder("github.commit.head.cache", headCache, BranchHeadCache::getStaleCount)
+                    .tag("result", "stale").register(this.registry);
+        }
+        if (contentCache != null) {
+            FunctionCounter.builder("github.commit.content.cache", contentCache, EncodedContentCache::getHitCount)
+                    .tag("result", "hit").register(this.registry);
+            FunctionCounter.builder("github.commit.content.cache", contentCache, EncodedContentCache::getMissCount)
+                    .tag("result", "miss").register(this.registry);
+            FunctionCounter.builder("github.commit.content.cache", contentCache,
+                    EncodedContentCache::getEvictionCount).tag("result", "eviction").register(this.registry);
+            Gauge.builder("github.commit.content.cache.size", contentCache, EncodedContentCache::getTotalBytes)
+                    .baseUnit("bytes").register(this.registry);
+        }
+        FunctionCounter.builder("github.commit.ratelimit.throttled", rateLimitScheduler,
+                RateLimitScheduler::getThrottledCount).register(this.registry);
+        FunctionCounter.builder("github.commit.ratelimit.wait", rateLimitScheduler,
+                s -> s.getWaitedNanos() / 1e9).baseUnit("seconds").register(this.registry);
+        if (payloadBudget != null) {
+            Gauge.builder("github.commit.payload.budget.used", payloadBudget, PayloadBudget::getUsedBytes)
+                    .baseUnit("bytes").register(this.registry);
+            Gauge.builder("github.commit.payload.budget.waiting", payloadBudget, PayloadBudget::getWaitingCount)
+                    .register(this.registry);
+            FunctionCounter.builder("github.commit.payload.budget.rejected", payloadBudget,
+                    PayloadBudget::getRejectedCount).register(this.registry);
+        }
+    }
+
+    void recordPhase(String phase, Tags tags, long nanos) {
+        this.registry.timer(METER_PHASE, tags.and("phase", phase)).record(Math.max(0, nanos), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param result
+     *            success, skipped or failure
+     */
+    void recordCommit(Tags tags, String result, long nanos) {
+        this.registry.timer(METER_COMMIT, tags.and("result", result)).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void recordFiles(Tags tags, SourceFilesChangeListBuilder changes) {
+        summary(METER_FILES, null, tags).record(changes.getUpdates().size() + changes.getDeletions().size());
+    }
+
+    void recordError(Tags tags, String type) {
+        this.registry.counter(METER_ERRORS, tags.and("type", String.valueOf(type))).increment();
+    }
+
+    /**
+     * @param wastedBytes
+     *            the size of the rejected request
+     */
+    void recordRetry(Tags tags, long wastedBytes) {
+        this.registry.counter(METER_RETRIES, tags).increment();
+        Counter.builder(METER_RETRIES_WASTED).baseUnit("bytes").tags(tags).register(this.registry)
+                .increment(wastedBytes);
+    }
+
+    /**
+     * Record the phases of a graphql exchange.
+     *
+     * @param elapsedNanos
+     *            the time from sending the request to reading the response
+     */
+    void recordExchange(Tags tags, MeasuredRequestBody body, long elapsedNanos, GraphqlResponse response) {
+        summary(METER_REQUEST_BYTES, "bytes", tags).record(body.writtenBytes);
+        if (response != null && response.getBody() != null) {
+            summary(METER_RESPONSE_BYTES, "bytes", tags).record(response.getBody().length());
+        }
+        if (body.body instanceof StreamingCommitBody) {
+            long readNanos = ((StreamingCommitBody) body.body).getReadNanos();
+            recordPhase(PHASE_FILE_READ, tags, readNanos);
+            recordPhase(PHASE_ENCODE, tags, body.writeNanos - body.sendNanos
+                    - (((StreamingCommitBody) body.body).isEncodedInParallel() ? 0 : readNanos));
+        }
+        recordPhase(PHASE_SEND, tags, body.sendNanos);
+        recordPhase(PHASE_WAIT, tags, elapsedNanos - body.writeNanos);
+    }
+
+    private DistributionSummary summary(String name, String baseUnit, Tags tags) {
+        return DistributionSummary.builder(name).baseUnit(baseUnit).tags(tags).register(this.registry);
+    }
+
+    /**
+     * The request body which measures the time of writing it, and of writing
+     * to the connection.
+     */
+    static class MeasuredRequestBody implements GraphqlRequestBody {
+        final GraphqlRequestBody body;
+        long writeNanos;
+        long sendNanos;
+        long writtenBytes;
+
+        MeasuredRequestBody(GraphqlRequestBody body) {
+            this.body = body;
+        }
+
+        @Override
+        public long getContentLength() {
+            return this.body.getContentLength();
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return this.body.isRepeatable();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            long start = System.nanoTime();
+            try {
+                this.body.writeTo(new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        long t = System.nanoTime();
+                        out.write(b);
+                        sendNanos += System.nanoTime() - t;
+                        writtenBytes++;
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        long t = System.nanoTime();
+                        out.write(b, off, len);
+                        sendNanos += System.nanoTime() - t;
+                        writtenBytes += len;
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        long t = System.nanoTime();
+                        out.flush();
+                        sendNanos += System.nanoTime() - t;
+                    }
+                });
+            } finally {
+                this.writeNanos += System.nanoTime() - start;
+            }
+        }
+    }
+}
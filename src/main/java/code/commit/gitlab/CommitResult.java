@@ -0,0 +1,41 @@
+package code.commit.gitlab;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * The new commit on the branch.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+@Accessors(chain = true)
+@Data
+public class CommitResult {
+
+    String oid;
+    String url;
+
+    /**
+     * Whether the commit is skipped because all update files are unchanged,
+     * then the oid is the unchanged head of the branch.
+     */
+    boolean skipped;
+
+    /**
+     * The size of the unchanged update files which are not sent.
+     */
+    long skippedBytes;
+
+    /**
+     * The number of times the commit was retried because the branch had been
+     * moved by another writer.
+     */
+    int retries;
+
+    /**
+     * The size of the requests rejected because the branch had been moved.
+     */
+    long wastedBytes;
+}
@@ -0,0 +1,175 @@
+package code.commit.gitlab;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.springframework.util.Assert;
+
+/**
+ * Walk a directory in parallel and compare its files with a
+ * {@link SyncManifest}.
+ * <p>
+ * A file whose size and modified time are the same as its entry is unchanged
+ * without reading it, otherwise its git blob oid is compared. The entries of
+ * the matched paths which are not found any more are deleted. The globs are
+ * matched against the path relative to the root, a directory matching an
+ * exclude glob is not walked, and the entries under it are kept. Symbolic
+ * links are not followed.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+class DirectorySync {
+
+    private final Path root;
+    private final String prefix;
+    private final List<PathMatcher> includes;
+    private final List<PathMatcher> excludes;
+    private final SyncManifest manifest;
+    private final Map<String, SyncManifest.Entry> scanned = new ConcurrentHashMap<>();
+    private final Map<String, Path> updates = new ConcurrentHashMap<>();
+    private final List<String> deletions = new ArrayList<>();
+    private SyncManifest.Staging staging;
+
+    DirectorySync(Path root, String prefix, Collection<String> includes, Collection<String> excludes,
+            SyncManifest manifest) {
+        Assert.isTrue(root != null && Files.isDirectory(root), "The root '" + root + "' is not a directory!");
+        this.root = root;
+        String p = prefix == null ? "" : prefix;
+        this.prefix = p.isEmpty() || p.endsWith("/") ? p : p + "/";
+        FileSystem fs = root.getFileSystem();
+        this.includes = includes.stream().map(g -> fs.getPathMatcher("glob:" + g)).collect(Collectors.toList());
+        this.excludes = excludes.stream().map(g -> fs.getPathMatcher("glob:" + g)).collect(Collectors.toList());
+        this.manifest = manifest;
+    }
+
+    /**
+     * Walk the directory, and stage the new entries of the manifest.
+     */
+    DirectorySync scan() {
+        ForkJoinPool.commonPool().invoke(new ScanDirectory(this.root));
+        if (this.manifest != null) {
+            for (String item : this.manifest.getEntries().keySet()) {
+                if (item.startsWith(this.prefix) && !this.scanned.containsKey(item)
+                        && isTracked(this.root.getFileSystem().getPath(item.substring(this.prefix.length())))) {
+                    this.deletions.add(item);
+                }
+            }
+            this.deletions.sort(null);
+            this.staging = this.manifest.stage(this.scanned, this.deletions);
+        }
+        return this;
+    }
+
+    /**
+     * @return the changed files by their relative path in the repository,
+     *         in order
+     */
+    Map<String, Path> getUpdates() {
+        return new TreeMap<>(this.updates);
+    }
+
+    List<String> getDeletions() {
+        return this.deletions;
+    }
+
+    /**
+     * @return the new entries of the manifest, or null without a manifest
+     */
+    SyncManifest.Staging getStaging() {
+        return this.staging;
+    }
+
+    private boolean isIncluded(Path relative) {
+        return (this.includes.isEmpty() || this.includes.stream().anyMatch(m -> m.matches(relative)))
+                && this.excludes.stream().noneMatch(m -> m.matches(relative));
+    }
+
+    /**
+     * An entry under an excluded directory is not walked, it is kept instead
+     * of being deleted.
+     */
+    private boolean isTracked(Path relative) {
+        if (!isIncluded(relative)) {
+            return false;
+        }
+        for (int i = 1; i < relative.getNameCount(); i++) {
+            Path dir = relative.subpath(0, i);
+            if (this.excludes.stream().anyMatch(m -> m.matches(dir))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void compare(Path file, BasicFileAttributes attrs) {
+        Path relative = this.root.relativize(file);
+        if (!isIncluded(relative)) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder(this.prefix);
+        for (Path name : relative) {
+            sb.append(name).append('/');
+        }
+        String relativePath = sb.substring(0, sb.length() - 1);
+        long modifiedNanos = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        SyncManifest.Entry entry = this.manifest == null ? null : this.manifest.get(relativePath);
+        if (entry != null && entry.size == attrs.size() && entry.modifiedNanos == modifiedNanos) {
+            this.scanned.put(relativePath, entry);
+            return;
+        }
+        String oid = SourceFilesChangeListBuilder.computeGitBlobOid(file);
+        this.scanned.put(relativePath, new SyncManifest.Entry(oid, attrs.size(), modifiedNanos));
+        if (entry == null || !entry.oid.equals(oid)) {
+            this.updates.put(relativePath, file);
+        }
+    }
+
+    private class ScanDirectory extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+
+        ScanDirectory(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            List<ScanDirectory> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(this.dir)) {
+                for (Path child : children) {
+                    BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                    if (attrs.isDirectory()) {
+                        Path relative = root.relativize(child);
+                        if (excludes.stream().noneMatch(m -> m.matches(relative))) {
+                            subtasks.add(new ScanDirectory(child));
+                        }
+                    } else if (attrs.isRegularFile()) {
+                        compare(child, attrs);
+                    }
+                }
+            } catch (IOException e) {
+                throw new GithubRemoteRepositoryOperationException("Failed to scan directory: " + this.dir, e);
+            }
+            invokeAll(subtasks);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package code.commit.gitlab;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.util.Assert;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * The cache of the base64 encoded contents of update files, so a file
+ * committed to many branches or repositories is read and encoded once.
+ * <p>
+ * A file is identified by its absolute path, its size and its modified time,
+ * a file changed in place is a new entry. The encoded contents are held in
+ * direct buffers outside the heap, the least recently used entries are
+ * evicted when the total size exceeds the max size. A file whose encoded
+ * contents are larger than the max entry size is never cached.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+public class EncodedContentCache {
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<Key, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * @param maxSize
+     *            the max total size of the encoded contents
+     * @param maxEntrySize
+     *            the max encoded size of one file
+     */
+    public EncodedContentCache(DataSize maxSize, DataSize maxEntrySize) {
+        Assert.isTrue(maxSize != null && maxSize.toBytes() > 0, "The max size must be positive!");
+        Assert.isTrue(maxEntrySize != null && maxEntrySize.toBytes() > 0, "The max entry size must be positive!");
+        this.maxBytes = maxSize.toBytes();
+        this.maxEntryBytes = Math.min(Math.min(maxEntrySize.toBytes(), this.maxBytes), Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param size
+     *            the size of the file
+     * @return whether the encoded contents of the file can be cached
+     */
+    boolean isCacheable(long size) {
+        return StreamingCommitBody.base64LengthOf(size) <= this.maxEntryBytes;
+    }
+
+    /**
+     * @return the encoded contents, read-only, or null if absent
+     */
+    ByteBuffer get(Path file, long size, long modifiedNanos) {
+        ByteBuffer encoded;
+        synchronized (this.entries) {
+            encoded = this.entries.get(new Key(file, size, modifiedNanos));
+        }
+        if (encoded == null) {
+            this.missCount.incrementAndGet();
+            return null;
+        }
+        this.hitCount.incrementAndGet();
+        return encoded.duplicate();
+    }
+
+    /**
+     * @param encoded
+     *            the encoded contents, which must not be changed any more
+     */
+    void put(Path file, long size, long modifiedNanos, ByteBuffer encoded) {
+        if (encoded.remaining() > this.maxEntryBytes) {
+            return;
+        }
+        ByteBuffer value = encoded.asReadOnlyBuffer();
+        synchronized (this.entries) {
+            ByteBuffer old = this.entries.put(new Key(file, size, modifiedNanos), value);
+            this.totalBytes += value.remaining() - (old == null ? 0 : old.remaining());
+            // the evicted buffers are released by the gc once the bodies writing them are done
+            Iterator<ByteBuffer> eldest = this.entries.values().iterator();
+            while (this.totalBytes > this.maxBytes) {
+                this.totalBytes -= eldest.next().remaining();
+                eldest.remove();
+                this.evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return this.evictionCount.get();
+    }
+
+    /**
+     * @return the total size of the cached contents
+     */
+    public long getTotalBytes() {
+        synchronized (this.entries) {
+            return this.totalBytes;
+        }
+    }
+
+    public int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    private static class Key {
+        final Path file;
+        final long size;
+        final long modifiedNanos;
+
+        Key(Path file, long size, long modifiedNanos) {
+            this.file = file.toAbsolutePath().normalize();
+            this.size = size;
+            this.modifiedNanos = modifiedNanos;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return this.file.equals(other.file) && this.size == other.size
+                    && this.modifiedNanos == other.modifiedNanos;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.file, this.size, this.modifiedNanos);
+        }
+    }
+}
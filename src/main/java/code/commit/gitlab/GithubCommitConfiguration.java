@@ -0,0 +1,37 @@
+package code.commit.gitlab;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * The beans of committing to github, whose options are bound from the
+ * properties <code>github.commit.*</code>, and whose metrics are registered to
+ * the meter registry of the actuator. One operation with pooled connections
+ * serves all commits of {@link GithubCommitController}.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+@Configuration(proxyBeanMethods = false)
+public class GithubCommitConfiguration {
+
+    @Bean
+    @ConfigurationProperties(prefix = "github.commit")
+    public GithubCommitOptions githubCommitOptions() {
+        return new GithubCommitOptions();
+    }
+
+    @Bean
+    public GithubCommitOperation githubCommitOperation(GithubCommitOptions options,
+            ObjectProvider<MeterRegistry> meterRegistry) {
+        if (options.getMeterRegistry() == null) {
+            options.setMeterRegistry(meterRegistry.getIfAvailable());
+        }
+        return new GithubCommitOperation(options);
+    }
+}
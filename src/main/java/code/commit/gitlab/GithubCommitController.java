@@ -0,0 +1,215 @@
+package code.commit.gitlab;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.Assert;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.WebAsyncTask;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The http endpoint of committing to github.
+ * <p>
+ * A commit is a <code>multipart/form-data</code> request with the bearer
+ * token of github, whose form fields <b>owner</b>, <b>repo</b>,
+ * <b>branch</b>, <b>headline</b>, <b>body</b> and <b>deletion</b>
+ * (repeatable) precede the file parts. The file name of every file part is
+ * its relative path in the repository.
+ * <p>
+ * The request is parsed as a stream, the file parts are encoded into the
+ * request to github while being received, so they are never buffered in
+ * memory or written to temporary files. The commit runs on the own threads
+ * of the controller, one per pooled connection to github, and does not hold
+ * a servlet thread. The threads are not a bean, so the default task executor
+ * of the application is kept for the other asynchronous tasks.
+ * <p>
+ * The bearer token is not validated here but by github. With a token pool,
+ * whose tokens replace the token of the caller, only the callers holding one
+ * of the pool tokens are accepted, so the pool can not be borrowed by any
+ * caller to commit wherever it is allowed to.
+ *
+ * <pre>
+ * curl -H "Authorization: Bearer $GITHUB_TOKEN" \
+ *      -F owner=zhwlin -F repo=demo -F branch=test -F headline="Add a file" \
+ *      -F "file=@HELP.md;filename=docs/HELP.md" \
+ *      http://localhost:8080/github/commits
+ * </pre>
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+@Slf4j
+@RestController
+@RequestMapping("/github")
+public class GithubCommitController implements DisposableBean {
+
+    private final GithubCommitOperation operation;
+    private final ThreadPoolTaskExecutor executor;
+    private final Set<String> tokenPool;
+
+    public GithubCommitController(GithubCommitOperation operation, GithubCommitOptions options) {
+        this.operation = operation;
+        this.tokenPool = new HashSet<>(options.getTokenPool());
+        int threads = options.getMaxConnections() > 0 ? options.getMaxConnections() : 16;
+        this.executor = new ThreadPoolTaskExecutor();
+        this.executor.setCorePoolSize(threads);
+        this.executor.setMaxPoolSize(threads);
+        this.executor.setThreadNamePrefix("github-commit-");
+        this.executor.initialize();
+    }
+
+    @Override
+    public void destroy() {
+        this.executor.shutdown();
+    }
+
+    @PostMapping(path = "/commits", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public WebAsyncTask<CommitResult> commit(HttpServletRequest request,
+            @RequestHeader(HttpHeaders.AUTHORIZATION) String authorization) {
+        Assert.isTrue(authorization.startsWith("Bearer "), "The authorization must be a bearer token!");
+        String userToken = authorization.substring("Bearer ".length()).trim();
+        if (!this.tokenPool.isEmpty() && !this.tokenPool.contains(userToken)) {
+            throw new SecurityException("The token is not one of the token pool!");
+        }
+        return new WebAsyncTask<>(null, this.executor, () -> doCommit(request, userToken));
+    }
+
+    private CommitResult doCommit(HttpServletRequest request, String userToken)
+            throws IOException, FileUploadException {
+        FileItemIterator items = new ServletFileUpload().getItemIterator(request);
+        CommitInput input = new CommitInput().setUserToken(userToken);
+        SourceFilesChangeListBuilder changes = SourceFilesChangeListBuilder.create();
+        FileItemStream firstFile = null;
+        while (items.hasNext()) {
+            FileItemStream item = items.next();
+            if (!item.isFormField()) {
+                firstFile = item;
+                break;
+            }
+            String value = Streams.asString(item.openStream(), StandardCharsets.UTF_8.name());
+            switch (item.getFieldName()) {
+            case "owner":
+                input.setOwner(value);
+                break;
+            case "repo":
+                input.setRepoName(value);
+                break;
+            case "branch":
+                input.setBranch(value);
+                break;
+            case "headline":
+                input.setCommitMsgHeader(value);
+                break;
+            case "body":
+                input.setCommitMsgBody(value);
+                break;
+            case "deletion":
+                changes.addDeleteFile(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown form field: " + item.getFieldName());
+            }
+        }
+        CommitResult result = this.operation.commit(input.setChangeList(changes),
+                new MultipartFileIterator(items, firstFile));
+        log.info("Committed {}, owner:{}, repos:{}, branch:{}", result.getOid(), input.getOwner(),
+                input.getRepoName(), input.getBranch());
+        return result;
+    }
+
+    @ExceptionHandler({ IllegalArgumentException.class, FileUploadException.class })
+    public ResponseEntity<Map<String, String>> handleBadRequest(Exception e) {
+        return error(HttpStatus.BAD_REQUEST, e);
+    }
+
+    @ExceptionHandler(SecurityException.class)
+    public ResponseEntity<Map<String, String>> handleForbidden(SecurityException e) {
+        return error(HttpStatus.FORBIDDEN, e);
+    }
+
+    @ExceptionHandler(GithubStaleHeadOidException.class)
+    public ResponseEntity<Map<String, String>> handleStaleHead(GithubStaleHeadOidException e) {
+        return error(HttpStatus.CONFLICT, e);
+    }
+
+    @ExceptionHandler(GithubRemoteRepositoryOperationException.class)
+    public ResponseEntity<Map<String, String>> handleGithubError(GithubRemoteRepositoryOperationException e) {
+        log.warn("Failed to commit.", e);
+        return error(HttpStatus.BAD_GATEWAY, e);
+    }
+
+    private static ResponseEntity<Map<String, String>> error(HttpStatus status, Exception e) {
+        return ResponseEntity.status(status).body(Collections.singletonMap("message", e.getMessage()));
+    }
+
+    /**
+     * The file parts after the form fields.
+     */
+    private static class MultipartFileIterator implements UpdateFileIterator {
+        private final FileItemIterator items;
+        private FileItemStream pending;
+        private FileItemStream current;
+
+        MultipartFileIterator(FileItemIterator items, FileItemStream firstFile) {
+            this.items = items;
+            this.pending = firstFile;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (this.pending != null) {
+                this.current = this.pending;
+                this.pending = null;
+                return true;
+            }
+            try {
+                if (!this.items.hasNext()) {
+                    return false;
+                }
+                this.current = this.items.next();
+            } catch (FileUploadException e) {
+                throw new IllegalArgumentException("Invalid multipart request: " + e.getMessage(), e);
+            }
+            if (this.current.isFormField()) {
+                throw new IllegalArgumentException(
+                        "The form field '" + this.current.getFieldName() + "' must precede the files!");
+            }
+            return true;
+        }
+
+        @Override
+        public String getRelativePath() {
+            return this.current.getName();
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return this.current.openStream();
+        }
+    }
+}
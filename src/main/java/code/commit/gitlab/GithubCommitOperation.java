@@ -1,242 +1,769 @@
 package code.commit.gitlab;
 
-import java.time.Duration;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import org.springframework.boot.web.client.RestTemplateBuilder;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
-import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+
 import org.springframework.util.Assert;
 import org.springframework.util.unit.DataSize;
-import org.springframework.web.client.RestTemplate;
 
 import code.commit.CodeCommitOperation;
+import code.commit.gitlab.CommitMetrics.MeasuredRequestBody;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
 import lombok.extern.slf4j.Slf4j;
 
 /**
+ * The operation which commits change lists by the graphql api of github. It
+ * must be closed to release the connections of the transport built by itself,
+ * a transport given by the options is left open.
  *
  * @author linzhw
  * @version 1.0
  *
  */
 @Slf4j
-public class GithubCommitOperation implements CodeCommitOperation {
+public class GithubCommitOperation implements CodeCommitOperation, Closeable {
 
     /**
      * 
      */
-    private static final String API_GITHUB_GRAPHQL = "https://api.github.com/graphql";
-    private static final Pattern REG_OID = Pattern.compile("\"oid\":\"(.*?)\"");
-    private static final String REQ_OID_QRY_TEMPLATE = getOidQueryTemplate();
-    private static final String REQ_COMMIT_OP_TEMPLATE = getCommitOpMutationTemplate();
-    RestTemplate client;
+    public static final String API_GITHUB_GRAPHQL = "https://api.github.com/graphql";
+    private static final String REQ_OID_QRY = getOidQuery();
+    private static final String REQ_COMMIT_OP_MUTATION = getCommitOpMutation();
+    private static final int BLOB_QRY_BATCH_SIZE = 100;
+    private static final String REF_PREFIX_HEADS = "refs/heads/";
+    private static final String ERR_STALE_DATA = "STALE_DATA";
+    private static final String ERR_STALE_HEAD_OID = "Expected branch to point to";
+    private static final String ERR_RATE_LIMITED = "RATE_LIMITED";
+    private static final int PAYLOAD_OVERHEAD_PER_FILE = 256;
+    GraphqlTransport transport;
+    boolean ownsTransport;
+    RateLimitScheduler rateLimitScheduler;
+    GithubCommitOptions options;
+    BranchHeadCache headCache;
+    EncodedContentCache contentCache;
+    ForkJoinPool encodePool;
+    PayloadBudget payloadBudget;
+    CommitMetrics metrics;
 
     /**
      * 
      */
     public GithubCommitOperation() {
-        client = new RestTemplateBuilder().setConnectTimeout(Duration.ofSeconds(5))
-                .setReadTimeout(Duration.ofSeconds(60)).build();
+        this(new GithubCommitOptions());
+    }
+
+    /**
+     * @param options
+     *            the options of committing
+     */
+    public GithubCommitOperation(GithubCommitOptions options) {
+        Assert.notNull(options, "The options must not be null!");
+        this.options = options;
+        if (options.getHeadCacheTtl() != null) {
+            this.headCache = new BranchHeadCache(options.getHeadCacheTtl(), options.getHeadCacheMaxSize());
+        }
+        if (options.getContentCacheSize() != null) {
+            this.contentCache = new EncodedContentCache(options.getContentCacheSize(),
+                    options.getContentCacheMaxEntrySize());
+        }
+        this.ownsTransport = options.getTransport() == null;
+        this.rateLimitScheduler = new RateLimitScheduler(Optional.ofNullable(options.getTransport())
+                                 .orElseGet(() -> new HttpGraphqlTransport(options)), options);
+        this.transport = this.rateLimitScheduler;
+        if (options.getEncodeParallelism() > 1) {
+            Assert.notNull(options.getMaxEncodeBufferSize(), "The max encode buffer size must not be null!");
+            this.encodePool = new ForkJoinPool(options.getEncodeParallelism());
+        }
+        if (options.getMaxInFlightPayloadSize() != null) {
+            this.payloadBudget = new PayloadBudget(options.getMaxInFlightPayloadSize().toBytes(),
+                    options.getInFlightPayloadMaxWait() == null ? 0 : options.getInFlightPayloadMaxWait().toNanos());
+        }
+        this.metrics = new CommitMetrics(Optional.ofNullable(options.getMeterRegistry()).orElse(Metrics.globalRegistry));
+        this.metrics.bind(this.headCache, this.contentCache, this.rateLimitScheduler, this.payloadBudget);
     }
     
     public void doAction(CommitInput commitInput) {
-        String lastestCommitId = this.getLastestCommitId(commitInput.getOwner(), 
-                                                         commitInput.getRepoName(),
-                                                         commitInput.getUserToken(),
-                                                         commitInput.getBranch()
-                                                         );
+        this.commit(commitInput);
+    }
+
+    /**
+     * Commit the change list, the same as {@link #doAction(CommitInput)}.
+     * 
+     * @param commitInput
+     *            the commit
+     * @return the new commit, which is the last one if the change list is
+     *         split
+     */
+    public CommitResult commit(CommitInput commitInput) {
+        Tags tags = CommitMetrics.tagsOf(commitInput.getOwner() + "/" + commitInput.getRepoName(),
+                commitInput.getBranch());
+        long start = System.nanoTime();
+        long reserved = 0;
+        try {
+            reserved = this.reservePayload(commitInput.getChangeList());
+            CommitResult result = this.commit(commitInput, this.headCache != null, 0);
+            this.metrics.recordCommit(tags, result.isSkipped() ? "skipped" : "success", System.nanoTime() - start);
+            return result;
+        } catch (RuntimeException e) {
+            this.metrics.recordCommit(tags, "failure", System.nanoTime() - start);
+            throw e;
+        } finally {
+            if (reserved > 0) {
+                this.payloadBudget.release(reserved);
+            }
+        }
+    }
+
+    /**
+     * Commit the change list together with the update files read from the
+     * iterator, in one pass without holding the files, e.g. the file parts of
+     * a multipart request.
+     * <p>
+     * The request to github is chunked and can not be sent again, so the head
+     * is always looked up, and the change list is neither split nor compared
+     * with the remote files. Only the change list is counted in the in-flight
+     * payload budget, the streamed files are never held whole.
+     * 
+     * @param commitInput
+     *            the commit, whose change list may be null
+     * @param files
+     *            the update files read while sending the request
+     * @return the new commit
+     */
+    public CommitResult commit(CommitInput commitInput, UpdateFileIterator files) {
+        Assert.notNull(files, "The update files must not be null!");
+        String repoNameWithOwner = commitInput.getOwner() + "/" + commitInput.getRepoName();
+        Tags tags = CommitMetrics.tagsOf(repoNameWithOwner, commitInput.getBranch());
+        SourceFilesChangeListBuilder changes = Optional.ofNullable(commitInput.getChangeList())
+                                                       .orElseGet(SourceFilesChangeListBuilder::create);
+        long start = System.nanoTime();
+        long reserved = 0;
+        try {
+            reserved = this.reservePayload(changes);
+            CommitResult result = this.doCommitOp(commitInput.getUserToken(),
+                                                  repoNameWithOwner,
+                                                  commitInput.getBranch(),
+                                                  this.getLastestCommitId(commitInput),
+                                                  commitInput.getCommitMsgHeader(),
+                                                  commitInput.getCommitMsgBody(),
+                                                  changes,
+                                                  files,
+                                                  true);
+            if (this.headCache != null) {
+                this.headCache.put(commitInput.getOwner(), commitInput.getRepoName(), commitInput.getBranch(),
+                        result.getOid());
+            }
+            this.metrics.recordCommit(tags, "success", System.nanoTime() - start);
+            return result;
+        } catch (RuntimeException e) {
+            if (this.headCache != null) {
+                this.headCache.invalidate(commitInput.getOwner(), commitInput.getRepoName(),
+                        commitInput.getBranch());
+            }
+            this.metrics.recordCommit(tags, "failure", System.nanoTime() - start);
+            throw e;
+        } finally {
+            if (reserved > 0) {
+                this.payloadBudget.release(reserved);
+            }
+        }
+    }
+
+    /**
+     * Reserve the estimated encoded size of the change list from the payload
+     * budget: the base64 contents of the update files and the json around
+     * every file.
+     *
+     * @return the reserved size
+     */
+    private long reservePayload(SourceFilesChangeListBuilder changes) {
+        if (this.payloadBudget == null || changes == null) {
+            return 0;
+        }
+        long files = changes.getUpdates().size() + changes.getDeletions().size();
+        return this.payloadBudget.acquire(StreamingCommitBody.base64LengthOf(changes.getTotalSizeOfUpdateFiles())
+                + files * PAYLOAD_OVERHEAD_PER_FILE);
+    }
+
+    /**
+     * @param restarts
+     *            the number of times the commit has been started over because
+     *            the branch had been moved by another writer
+     */
+    private CommitResult commit(CommitInput commitInput, boolean useHeadCache, int restarts) {
+        String cachedCommitId = !useHeadCache ? null
+                : this.headCache.get(commitInput.getOwner(), commitInput.getRepoName(), commitInput.getBranch());
+        String lastestCommitId = cachedCommitId != null ? cachedCommitId : this.getLastestCommitId(commitInput);
         if(log.isDebugEnabled()) {
-           log.debug("Last commit-id:{}, owner:{}, repos:{}, branch:{}", lastestCommitId,
+           log.debug("Last commit-id:{}, cached:{}, owner:{}, repos:{}, branch:{}", lastestCommitId,
+                                                           cachedCommitId != null,
                                                            commitInput.getOwner(),
                                                            commitInput.getRepoName(),
                                                            commitInput.getBranch()
                      ); 
         }
+        SourceFilesChangeListBuilder changes = commitInput.getChangeList();
+        long skippedBytes = 0;
+        Set<String> unchangedFiles = Collections.emptySet();
+        if (this.options.isSkipUnchangedFiles()) {
+            unchangedFiles = this.findUnchangedFiles(commitInput, lastestCommitId);
+            if (!unchangedFiles.isEmpty()) {
+                skippedBytes = changes.getTotalSizeOfUpdateFiles(unchangedFiles);
+                changes = changes.without(unchangedFiles);
+                log.info("Skip {} unchanged files({} bytes), owner:{}, repos:{}, branch:{}", unchangedFiles.size(),
+                        skippedBytes, commitInput.getOwner(), commitInput.getRepoName(), commitInput.getBranch());
+            }
+            if (changes.isEmpty()) {
+                if (cachedCommitId != null && !cachedCommitId.equals(this.getLastestCommitId(commitInput))) {
+                    // the files may have been changed on the current head
+                    this.headCache.markStale(commitInput.getOwner(), commitInput.getRepoName(),
+                            commitInput.getBranch());
+                    return this.commit(commitInput, false, restarts);
+                }
+                commitInput.getChangeList().saveManifests();
+                return new CommitResult().setOid(lastestCommitId).setSkipped(true).setSkippedBytes(skippedBytes);
+            }
+        }
         String repoNameWithOwner = commitInput.getOwner() + "/" + commitInput.getRepoName();
-        this.doCommitOp(commitInput.getUserToken(), 
-                        repoNameWithOwner, 
-                        commitInput.getBranch(),
-                        lastestCommitId,
-                        commitInput.getCommitMsgHeader(),
-                        commitInput.getCommitMsgBody(),
-                        commitInput.getChangeList()
-                        );
+        CommitResult result = null;
+        int retries = 0;
+        long wastedBytes = 0;
+        List<SourceFilesChangeListBuilder> parts = this.splitChangeList(changes);
+        for (int i = 0; i < parts.size(); i++) {
+            String headline = commitInput.getCommitMsgHeader();
+            if (parts.size() > 1) {
+                headline = String.format("%s (%d/%d)", Optional.ofNullable(headline).orElse(""), i + 1,
+                        parts.size());
+            }
+            try {
+                result = this.doCommitOp(commitInput.getUserToken(),
+                                         repoNameWithOwner,
+                                         commitInput.getBranch(),
+                                         lastestCommitId,
+                                         headline,
+                                         commitInput.getCommitMsgBody(),
+                                         parts.get(i),
+                                         null,
+                                         // the skipped files must be compared with the moved head again
+                                         unchangedFiles.isEmpty()
+                                         );
+            } catch (GithubRemoteRepositoryOperationException e) {
+                if (e instanceof GithubStaleHeadOidException && i == 0 && cachedCommitId != null
+                        && (this.options.getMaxStaleHeadRetries() == 0 || !unchangedFiles.isEmpty())) {
+                    // the cached head is out of date, start over with the head looked up
+                    this.headCache.markStale(commitInput.getOwner(), commitInput.getRepoName(),
+                            commitInput.getBranch());
+                    return this.commit(commitInput, false, restarts);
+                }
+                if (e instanceof GithubStaleHeadOidException && i == 0 && !unchangedFiles.isEmpty()
+                        && restarts < this.options.getMaxStaleHeadRetries()) {
+                    this.metrics.recordRetry(CommitMetrics.tagsOf(repoNameWithOwner, commitInput.getBranch()),
+                            ((GithubStaleHeadOidException) e).getRequestBytes());
+                    this.backoff(restarts + 1);
+                    log.info("The branch has been moved, start over #{}, repos:{}, branch:{}", restarts + 1,
+                            repoNameWithOwner, commitInput.getBranch());
+                    CommitResult restarted = this.commit(commitInput, false, restarts + 1);
+                    return restarted.setWastedBytes(restarted.getWastedBytes()
+                            + ((GithubStaleHeadOidException) e).getRequestBytes());
+                }
+                if (this.headCache != null) {
+                    this.headCache.invalidate(commitInput.getOwner(), commitInput.getRepoName(),
+                            commitInput.getBranch());
+                }
+                if (parts.size() == 1) {
+                    throw e;
+                }
+                throw new GithubRemoteRepositoryOperationException(String.format(
+                        "Failed to commit part %d/%d, the former parts have been committed!", i + 1, parts.size()),
+                        e);
+            }
+            if (result.getRetries() > 0 && i == 0 && cachedCommitId != null) {
+                this.headCache.markStale(commitInput.getOwner(), commitInput.getRepoName(),
+                        commitInput.getBranch());
+            }
+            retries += result.getRetries();
+            wastedBytes += result.getWastedBytes();
+            lastestCommitId = result.getOid();
+            if (this.headCache != null) {
+                this.headCache.put(commitInput.getOwner(), commitInput.getRepoName(), commitInput.getBranch(),
+                        lastestCommitId);
+            }
+        }
+        commitInput.getChangeList().saveManifests();
+        this.metrics.recordFiles(CommitMetrics.tagsOf(repoNameWithOwner, commitInput.getBranch()), changes);
         if(log.isDebugEnabled()) {
-            long fileSize = commitInput.getChangeList().getTotalSizeOfUpdateFiles();
-            String size = DataSize.ofBytes(fileSize).toKilobytes() + "KB";
-            log.debug("Succeed to commit! Change list({}): {}", size, commitInput.getChangeList().getChangeList());
+            log.debug("Succeed to commit! Change list: {}", changes.getChangeList());
+        }
+        return result.setSkippedBytes(skippedBytes).setRetries(retries + restarts).setWastedBytes(wastedBytes);
+    }
+
+    /**
+     * @return the cache of branch heads, or null if it is disabled
+     */
+    public BranchHeadCache getHeadCache() {
+        return this.headCache;
+    }
+
+    /**
+     * @return the cache of encoded file contents, or null if it is disabled
+     */
+    public EncodedContentCache getContentCache() {
+        return this.contentCache;
+    }
+
+    /**
+     * @return the scheduler which keeps the requests within the rate limits
+     */
+    public RateLimitScheduler getRateLimitScheduler() {
+        return this.rateLimitScheduler;
+    }
+
+    /**
+     * Close the transport built by this operation, and stop the threads
+     * encoding the update files.
+     */
+    @Override
+    public void close() {
+        if (this.ownsTransport) {
+            this.rateLimitScheduler.close();
+        }
+        if (this.encodePool != null) {
+            this.encodePool.shutdown();
         }
-        
     }
 
-    private void doCommitOp(String userToken,
+    private List<SourceFilesChangeListBuilder> splitChangeList(SourceFilesChangeListBuilder changes) {
+        DataSize maxCommitSize = this.options.getMaxCommitSize();
+        if (maxCommitSize == null) {
+            return Collections.singletonList(changes);
+        }
+        List<SourceFilesChangeListBuilder> parts = changes.split(maxCommitSize.toBytes());
+        if (log.isDebugEnabled() && parts.size() > 1) {
+            log.debug("Split change list into {} commits, max commit size: {}", parts.size(), maxCommitSize);
+        }
+        return parts;
+    }
+
+    /**
+     * Send the commit mutation. If the branch has been moved by another
+     * writer, the head is looked up again and the commit is retried with the
+     * retained request after a random backoff, up to
+     * {@link GithubCommitOptions#getMaxStaleHeadRetries()} times.
+     * 
+     * @param streamedFiles
+     *            the update files read while sending the request, or null
+     * @param retryOnMovedHead
+     *            whether to retry the same request on the moved head, false
+     *            if the change list depends on the head, e.g. the unchanged
+     *            files are left out
+     * @return the new commit, which is the head of the branch
+     */
+    private CommitResult doCommitOp(String userToken,
                             String repoNameWithowner, 
                             String branch, 
                             String lastestOid,
                             String commitMessageHeadline, 
                             String commitMessageBody, 
-                            SourceFilesChangeListBuilder changes) {
-        String queryBody = this.getCommitOpMutationQuery(repoNameWithowner,
+                            SourceFilesChangeListBuilder changes,
+                            UpdateFileIterator streamedFiles,
+                            boolean retryOnMovedHead) {
+        Tags tags = CommitMetrics.tagsOf(repoNameWithowner, branch);
+        long start = System.nanoTime();
+        StreamingCommitBody queryBody = this.newCommitBody(requireInput(repoNameWithowner),
+                                                           requireInput(branch),
+                                                           requireInput(lastestOid),
+                                                           commitMessageHeadline,
+                                                           commitMessageBody,
+                                                           changes);
+        if (streamedFiles != null) {
+            queryBody.streamFrom(streamedFiles);
+        }
+        int maxRetries = retryOnMovedHead ? this.options.getMaxStaleHeadRetries() : 0;
+        if (maxRetries > 0 && this.options.getMaxRetainedRequestSize() != null) {
+            queryBody.retainUpTo(this.options.getMaxRetainedRequestSize().toBytes());
+        }
+        this.metrics.recordPhase(CommitMetrics.PHASE_SERIALIZE, tags, System.nanoTime() - start);
+        if(log.isDebugEnabled()) {
+            log.debug("Commit query({} bytes): {}", queryBody.getContentLength(), changes.getChangeList());
+        }
+        GraphqlRequestBody body = queryBody;
+        int retries = 0;
+        long wastedBytes = 0;
+        while (true) {
+            try {
+                return sendCommit(userToken, body, tags).setRetries(retries).setWastedBytes(wastedBytes);
+            } catch (GithubStaleHeadOidException e) {
+                if (retries >= maxRetries || !body.isRepeatable()) {
+                    throw e;
+                }
+                retries++;
+                wastedBytes += body.getContentLength();
+                this.metrics.recordRetry(tags, body.getContentLength());
+                this.backoff(retries);
+                String[] names = repoNameWithowner.split("/", 2);
+                String headOid = this.getLastestCommitId(names[0], names[1], userToken, branch);
+                log.info("The branch has been moved, retry #{} on head {}, repos:{}, branch:{}", retries, headOid,
+                        repoNameWithowner, branch);
+                body = queryBody.withExpectedHeadOid(headOid);
+                if (body == null) {
+                    // too large to be retained, written from the files again
+                    body = queryBody = this.newCommitBody(repoNameWithowner,
+                                                          branch,
+                                                          headOid,
+                                                          commitMessageHeadline,
+                                                          commitMessageBody,
+                                                          changes);
+                }
+            }
+        }
+    }
+
+    private StreamingCommitBody newCommitBody(String repoNameWithowner,
+                                              String branch,
+                                              String lastestOid,
+                                              String commitMessageHeadline,
+                                              String commitMessageBody,
+                                              SourceFilesChangeListBuilder changes) {
+        StreamingCommitBody queryBody = new StreamingCommitBody(REQ_COMMIT_OP_MUTATION,
+                                                        repoNameWithowner,
                                                         branch,
                                                         lastestOid,
-                                                        commitMessageHeadline,
-                                                        commitMessageBody,
+                                                        Optional.ofNullable(commitMessageHeadline).orElse(""),
+                                                        Optional.ofNullable(commitMessageBody).orElse(""),
                                                         changes);
-        if(log.isDebugEnabled()) {
-            log.debug("Commit query: {}", queryBody);
+        if (this.encodePool != null) {
+            queryBody.encodeWith(this.encodePool, this.options.getMaxEncodeBufferSize().toBytes());
         }
-        String r = doGithubGraphqlRequestWithBody(userToken, queryBody);
-        if (r.indexOf("\"errors\"") > -1) {
-            Pattern p = Pattern.compile("\"message\":\"(.*?)\"");
-            Optional<String> m = findFirstGroupByReg(r, p);
-            throw new GithubRemoteRepositoryOperationException(
-                    "Failed to commit to github, reason: " + m.orElse("unknown reason"));
+        if (this.contentCache != null) {
+            queryBody.cacheWith(this.contentCache);
+        }
+        return queryBody;
+    }
+
+    private CommitResult sendCommit(String userToken, GraphqlRequestBody body, Tags tags) {
+        GraphqlResult r = post(userToken, body, tags);
+        if (r.hasErrors()) {
+            GraphqlError error = r.getErrors().get(0);
+            String reason = Optional.ofNullable(error.getMessage()).orElse("unknown reason");
+            if (ERR_STALE_DATA.equals(error.getType()) || reason.startsWith(ERR_STALE_HEAD_OID)) {
+                this.metrics.recordError(tags, ERR_STALE_DATA);
+                throw new GithubStaleHeadOidException("Failed to commit to github, reason: " + reason,
+                        body.getContentLength());
+            }
+            this.metrics.recordError(tags, Optional.ofNullable(error.getType()).orElse("GRAPHQL"));
+            throw graphqlFailure(error, "Failed to commit to github, reason: " + reason);
         }
         if(log.isDebugEnabled()) {
             log.debug("Result: {}", r);
         }
+        String oid = r.getString("createCommitOnBranch.commit.oid");
+        if (oid == null) {
+            throw new GithubRemoteRepositoryOperationException("Failed to get the oid of new commit: " + r);
+        }
+        return new CommitResult().setOid(oid).setUrl(r.getString("createCommitOnBranch.commit.url"));
     }
 
-    private String getLastestCommitId(String owner, String repoName, String userToken, String branch) {
-        String body = getOidQuery(owner, repoName, branch);
-        String r = doGithubGraphqlRequestWithBody(userToken, body);
-        Optional<String> m = findFirstGroupByReg(r, REG_OID);
-        return m.orElseThrow(() -> {
-            return new GithubRemoteRepositoryOperationException(String.format(
-                    "Failed to get lastest commit id on this branch:%s, owner:%s, repo:%s!", branch, owner, repoName));
-        });
+    /**
+     * Sleep a random time up to the doubled backoff of the retry.
+     */
+    private void backoff(int retries) {
+        long bound = Math.min(this.options.getStaleHeadRetryMaxBackoff().toMillis(),
+                this.options.getStaleHeadRetryBackoff().toMillis() << Math.min(retries - 1, 20));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(Math.max(0, bound) + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GithubRemoteRepositoryOperationException("Interrupted while retrying the commit", e);
+        }
     }
 
-    private Optional<String> findFirstGroupByReg(String r, Pattern p) {
-        Matcher m = p.matcher(r);
-        if (m.find()) {
-            return Optional.ofNullable(m.group(1));
+    private String getLastestCommitId(CommitInput commitInput) {
+        return this.getLastestCommitId(commitInput.getOwner(),
+                                       commitInput.getRepoName(),
+                                       commitInput.getUserToken(),
+                                       commitInput.getBranch()
+                                       );
+    }
+
+    private String getLastestCommitId(String owner, String repoName, String userToken, String branch) {
+        Map<String, String> variables = new LinkedHashMap<>();
+        variables.put("owner", requireInput(owner));
+        variables.put("name", requireInput(repoName));
+        variables.put("ref", REF_PREFIX_HEADS + requireInput(branch));
+        Tags tags = CommitMetrics.tagsOf(owner + "/" + repoName, branch);
+        long start = System.nanoTime();
+        GraphqlResult r = post(userToken, GraphqlJson.toRequestBody(REQ_OID_QRY, variables), tags);
+        this.metrics.recordPhase(CommitMetrics.PHASE_HEAD_LOOKUP, tags, System.nanoTime() - start);
+        String oid = r.getString("repository.ref.target.oid");
+        if (oid == null) {
+            this.metrics.recordError(tags, r.hasErrors() ? r.getErrors().get(0).getType() : "NOT_FOUND");
+            String message = String.format("Failed to get lastest commit id on this branch:%s, owner:%s, repo:%s!%s",
+                    branch, owner, repoName, r.hasErrors() ? " reason: " + r.getErrors().get(0).getMessage() : "");
+            throw r.hasErrors() ? graphqlFailure(r.getErrors().get(0), message)
+                    : new GithubRejectedRequestException(message);
         }
-        return Optional.empty();
+        return oid;
     }
 
     /**
+     * Look up the heads of many branches, across repositories, with the
+     * exact refs of the branches aliased in one query. The branches are
+     * chunked into several queries by their estimated cost, one per
+     * repository and one per branch, up to
+     * {@link GithubCommitOptions#getHeadLookupMaxCost()}. The heads found are
+     * put into the head cache if it is enabled.
+     * 
      * @param userToken
-     * @param body
-     * @return
+     *            the token of the queries
+     * @param branches
+     *            the branches
+     * @return the head oid by branch, without the branches or repositories
+     *         which are not found
+     */
+    public Map<BranchRef, String> lookupHeads(String userToken, Collection<BranchRef> branches) {
+        Assert.notNull(branches, "The branches must not be null!");
+        Map<String, List<BranchRef>> repos = new LinkedHashMap<>();
+        for (BranchRef item : new LinkedHashSet<>(branches)) {
+            requireInput(item.getBranch());
+            repos.computeIfAbsent(requireInput(item.getOwner()) + "/" + requireInput(item.getRepoName()),
+                    k -> new ArrayList<>()).add(item);
+        }
+        int maxCost = Math.max(2, this.options.getHeadLookupMaxCost());
+        Map<BranchRef, String> heads = new LinkedHashMap<>();
+        List<List<BranchRef>> chunk = new ArrayList<>();
+        int cost = 0;
+        for (List<BranchRef> refs : repos.values()) {
+            for (int from = 0; from < refs.size();) {
+                if (cost + 2 > maxCost) {
+                    this.lookupHeads(userToken, chunk, heads);
+                    chunk = new ArrayList<>();
+                    cost = 0;
+                }
+                int to = Math.min(refs.size(), from + maxCost - cost - 1);
+                chunk.add(refs.subList(from, to));
+                cost += 1 + to - from;
+                from = to;
+            }
+        }
+        if (!chunk.isEmpty()) {
+            this.lookupHeads(userToken, chunk, heads);
+        }
+        return heads;
+    }
+
+    /**
+     * @param chunk
+     *            the branches grouped by repository
      */
-    private String doGithubGraphqlRequestWithBody(String userToken, String body) {
-        return post(API_GITHUB_GRAPHQL, userToken, formatRequestBody(body));
+    private void lookupHeads(String userToken, List<List<BranchRef>> chunk, Map<BranchRef, String> heads) {
+        Map<String, String> variables = new LinkedHashMap<>();
+        List<Integer> refCounts = new ArrayList<>(chunk.size());
+        int ref = 0;
+        for (int i = 0; i < chunk.size(); i++) {
+            List<BranchRef> refs = chunk.get(i);
+            variables.put("o" + i, refs.get(0).getOwner());
+            variables.put("n" + i, refs.get(0).getRepoName());
+            for (BranchRef item : refs) {
+                variables.put("q" + ref++, REF_PREFIX_HEADS + item.getBranch());
+            }
+            refCounts.add(refs.size());
+        }
+        Tags tags = CommitMetrics.tagsOf("*", "*");
+        long start = System.nanoTime();
+        GraphqlResult r = post(userToken, GraphqlJson.toRequestBody(getHeadsQuery(refCounts), variables), tags);
+        this.metrics.recordPhase(CommitMetrics.PHASE_HEAD_LOOKUP, tags, System.nanoTime() - start);
+        ref = 0;
+        for (int i = 0; i < chunk.size(); i++) {
+            for (BranchRef item : chunk.get(i)) {
+                // a missing repository is an error of its own, the other heads are still resolved
+                String oid = r.getString("r" + i + ".h" + ref++ + ".target.oid");
+                if (oid == null) {
+                    continue;
+                }
+                heads.put(item, oid);
+                if (this.headCache != null) {
+                    this.headCache.put(item.getOwner(), item.getRepoName(), item.getBranch(), oid);
+                }
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Looked up the heads of {} branches in {} repositories", ref, chunk.size());
+        }
     }
 
-    private String getCommitOpMutationQuery(String repoNameWithowner, String branch, String lastestOid,
-            String commitMessageHeadline, String commitMessageBody, SourceFilesChangeListBuilder changes) {
-        return String.format(REQ_COMMIT_OP_TEMPLATE, escapeInput(repoNameWithowner), escapeInput(branch),
-                escapeInputMessage(commitMessageHeadline), escapeInputMessage(commitMessageBody),
-                escapeInput(lastestOid), escapeInput(changes.buildGraphString()));
+    /**
+     * Compare the git blob oid of the update files with the remote files in
+     * the tree of the commit.
+     * 
+     * @return the relative paths of the update files which are the same as
+     *         the remote ones
+     */
+    private Set<String> findUnchangedFiles(CommitInput commitInput, String commitOid) {
+        List<String> paths = new ArrayList<>(commitInput.getChangeList().getUpdates().keySet());
+        Set<String> unchangedFiles = new HashSet<>();
+        Tags tags = CommitMetrics.tagsOf(commitInput.getOwner() + "/" + commitInput.getRepoName(),
+                commitInput.getBranch());
+        long start = System.nanoTime();
+        for (int from = 0; from < paths.size(); from += BLOB_QRY_BATCH_SIZE) {
+            List<String> batch = paths.subList(from, Math.min(paths.size(), from + BLOB_QRY_BATCH_SIZE));
+            Map<String, String> variables = new LinkedHashMap<>();
+            variables.put("owner", requireInput(commitInput.getOwner()));
+            variables.put("name", requireInput(commitInput.getRepoName()));
+            for (int i = 0; i < batch.size(); i++) {
+                variables.put("e" + i, commitOid + ":" + batch.get(i));
+            }
+            GraphqlResult r = post(commitInput.getUserToken(),
+                    GraphqlJson.toRequestBody(getBlobOidQuery(batch.size()), variables), tags);
+            for (int i = 0; i < batch.size(); i++) {
+                String oid = r.getString("repository.f" + i + ".oid");
+                UpdateSource file = commitInput.getChangeList().getUpdates().get(batch.get(i));
+                if (oid != null && oid.equals(SourceFilesChangeListBuilder.computeGitBlobOid(file))) {
+                    unchangedFiles.add(batch.get(i));
+                }
+            }
+        }
+        this.metrics.recordPhase(CommitMetrics.PHASE_BLOB_LOOKUP, tags, System.nanoTime() - start);
+        return unchangedFiles;
     }
 
-    private static String getCommitOpMutationTemplate() {
+    private static String getCommitOpMutation() {
         StringBuilder sb = new StringBuilder();
-        sb.append("mutation  {");
-        sb.append("  createCommitOnBranch( input: {");
-        sb.append("         branch: {");
-        sb.append("          repositoryNameWithOwner: \"%s\",");
-        sb.append("          branchName: \"%s\" ");
-        sb.append("        }, ");
-        sb.append("        message: {");
-        sb.append("            headline: \"%s\"");
-        sb.append("            body: \"%s\"");
-        sb.append("         }, ");
-        sb.append("        expectedHeadOid: \"%s\", ");
-        sb.append("        fileChanges: {%s}");
-        sb.append("    }) {");
-        sb.append("    commit {");
-        sb.append("      url");
-        sb.append("    }");
+        sb.append("mutation($input: CreateCommitOnBranchInput!) {");
+        sb.append(" createCommitOnBranch(input: $input) {");
+        sb.append("  commit {");
+        sb.append("   oid");
+        sb.append("   url");
         sb.append("  }");
+        sb.append(" }");
         sb.append("}");
-        return sb.toString().replaceAll("  ", "");
+        return sb.toString();
     }
 
     /**
-     * @param owner
-     * @param repoName
-     * @param branch
-     * @return
+     * The query text only depends on the number of paths, the expressions of
+     * the blobs are passed as variables <code>$e0 ... $eN</code>.
      */
-    private String getOidQuery(String owner, String repoName, String branch) {
-        return String.format(REQ_OID_QRY_TEMPLATE, escapeInput(owner), escapeInput(repoName), escapeInput(branch));
-    }
-
-    private static String getOidQueryTemplate() {
+    private static String getBlobOidQuery(int count) {
         StringBuilder sb = new StringBuilder();
-        sb.append("query {");
-        sb.append("repository(owner: \"%s\", name: \"%s\") {                ");
-        sb.append("  refs(refPrefix: \"refs/heads/\", first: 1, query: \"%s\") {");
-        sb.append("    edges {                                                 ");
-        sb.append("      node {                                                ");
-        sb.append("        target {                                            ");
-        sb.append("          ... on Commit {                                   ");
-        sb.append("            history(first: 1) {                             ");
-        sb.append("              nodes {                                       ");
-        sb.append("                oid                                         ");
-        sb.append("              }                                             ");
-        sb.append("            }                                               ");
-        sb.append("          }                                                 ");
-        sb.append("        }                                                   ");
-        sb.append("      }                                                     ");
-        sb.append("    }                                                       ");
-        sb.append("    pageInfo {                                              ");
-        sb.append("      endCursor                                             ");
-        sb.append("    }                                                       ");
-        sb.append("  }                                                         ");
-        sb.append(" }                                                           ");
+        sb.append("query($owner: String!, $name: String!");
+        for (int i = 0; i < count; i++) {
+            sb.append(", $e").append(i).append(": String!");
+        }
+        sb.append(") {");
+        sb.append(" repository(owner: $owner, name: $name) {");
+        for (int i = 0; i < count; i++) {
+            sb.append("  f").append(i).append(": object(expression: $e").append(i).append(") {");
+            sb.append("   ... on Blob { oid }");
+            sb.append("  }");
+        }
+        sb.append(" }");
+        sb.append(" rateLimit { cost remaining resetAt }");
         sb.append("}");
-        return sb.toString().replaceAll("  ", "");
+        return sb.toString();
     }
 
-    private String replaceCrlf(String v) {
-        return v.replaceAll("\\\n", "\\\\\\n").replaceAll("\\\r", "\\\\\\r");
+    /**
+     * The head is the target of the exact ref, unlike a search of refs which
+     * also matches the branches with the name as a prefix.
+     */
+    private static String getOidQuery() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("query($owner: String!, $name: String!, $ref: String!) {");
+        sb.append(" repository(owner: $owner, name: $name) {");
+        sb.append("  ref(qualifiedName: $ref) {");
+        sb.append("   target {");
+        sb.append("    oid");
+        sb.append("   }");
+        sb.append("  }");
+        sb.append(" }");
+        sb.append(" rateLimit { cost remaining resetAt }");
+        sb.append("}");
+        return sb.toString();
     }
 
-    private String escapeInputMessage(String v) {
-        String cv = (v == null) ? "" : replaceCrlf(v);
-        return escapeInput(cv, false);
+    /**
+     * The repositories are aliased <code>r0 ... rN</code> and the refs
+     * <code>h0 ... hM</code>, their names are passed as variables.
+     *
+     * @param refCounts
+     *            the number of refs of each repository
+     */
+    private static String getHeadsQuery(List<Integer> refCounts) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("query(");
+        int ref = 0;
+        for (int i = 0; i < refCounts.size(); i++) {
+            sb.append(i == 0 ? "" : ", ").append("$o").append(i).append(": String!, $n").append(i)
+                    .append(": String!");
+            for (int j = 0; j < refCounts.get(i); j++) {
+                sb.append(", $q").append(ref++).append(": String!");
+            }
+        }
+        sb.append(") {");
+        ref = 0;
+        for (int i = 0; i < refCounts.size(); i++) {
+            sb.append(" r").append(i).append(": repository(owner: $o").append(i).append(", name: $n").append(i)
+                    .append(") {");
+            for (int j = 0; j < refCounts.get(i); j++) {
+                sb.append("  h").append(ref).append(": ref(qualifiedName: $q").append(ref++).append(") {");
+                sb.append(" target { oid } }");
+            }
+            sb.append(" }");
+        }
+        sb.append(" rateLimit { cost remaining resetAt }");
+        sb.append("}");
+        return sb.toString();
     }
 
-    private String escapeInput(String v) {
-        return escapeInput(v, true);
+    private static String requireInput(String v) {
+        Assert.hasLength(v, "The input must not null or has text!");
+        return v;
     }
 
-    private String escapeInput(String v, boolean needToValid) {
-        if (needToValid) {
-            Assert.hasLength(v, "The input must not null or has text!");
-            ;
+    private GraphqlResult post(String token, GraphqlRequestBody body, Tags tags) {
+        MeasuredRequestBody measuredBody = new MeasuredRequestBody(body);
+        long start = System.nanoTime();
+        GraphqlResponse rbody;
+        try {
+            rbody = this.transport.post(token, measuredBody);
+        } catch (RuntimeException e) {
+            this.metrics.recordError(tags, e.getClass().getSimpleName());
+            throw e;
+        }
+        // the rate limit scheduler parses the response before it returns, which is not waiting for the server
+        this.metrics.recordExchange(tags, measuredBody, System.nanoTime() - start - rbody.getParseNanos(), rbody);
+        if (rbody.is2xxSuccessful()) {
+            GraphqlResult r = rbody.getResult();
+            this.metrics.recordPhase(CommitMetrics.PHASE_PARSE, tags, rbody.getParseNanos());
+            return r;
+        }
+        this.metrics.recordError(tags, "HTTP_" + rbody.getStatusCode());
+        String message = "Failed to request Http, status: " + rbody.getStatusCode();
+        // 403 and 429 are the rate limits, which pass after a while
+        if (rbody.getStatusCode() / 100 == 4 && rbody.getStatusCode() != 403 && rbody.getStatusCode() != 429) {
+            throw new GithubRejectedRequestException(message);
         }
-        return v.replaceAll("\"", "\\\"");
+        throw new GithubRemoteRepositoryOperationException(message);
     }
 
     /**
-     * @param body
-     * @return
+     * A graphql error is permanent, except the rate limit.
      */
-    private String formatRequestBody(String body) {
-        body = body.replaceAll("\"", "\\\\\"");
-        return String.format("{\"query\": \"%s\"}", body);
-    }
-
-    private String post(String url, String token, String body) {
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_JSON);
-        headers.setBearerAuth(token);
-        ResponseEntity<String> rbody = client.exchange(url, HttpMethod.POST, new HttpEntity<String>(body, headers),
-                String.class);
-        if (rbody.getStatusCode().is2xxSuccessful()) {
-            return rbody.getBody();
-        }
-        throw new GithubRemoteRepositoryOperationException(
-                "Failed to request Http, reason:" + rbody.getStatusCode().getReasonPhrase());
+    private static GithubRemoteRepositoryOperationException graphqlFailure(GraphqlError error, String message) {
+        return ERR_RATE_LIMITED.equals(error.getType()) ? new GithubRemoteRepositoryOperationException(message)
+                : new GithubRejectedRequestException(message);
     }
 
 }
@@ -0,0 +1,173 @@
+package code.commit.gitlab;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.util.unit.DataSize;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * The options of {@link GithubCommitOperation}.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+@Accessors(chain = true)
+@Data
+public class GithubCommitOptions {
+
+    /**
+     * The url of the graphql api, e.g. a local endpoint for testing.
+     */
+    String endpoint = GithubCommitOperation.API_GITHUB_GRAPHQL;
+
+    Duration connectTimeout = Duration.ofSeconds(5);
+
+    Duration readTimeout = Duration.ofSeconds(60);
+
+    /**
+     * The max number of pooled keep-alive connections, 0 means using the JDK
+     * <code>HttpURLConnection</code> without a pool.
+     */
+    int maxConnections = 64;
+
+    int maxConnectionsPerRoute = 20;
+
+    /**
+     * Whether to compress the request body with gzip.
+     */
+    boolean gzipRequest;
+
+    /**
+     * The transport of graphql requests, null means a
+     * {@link HttpGraphqlTransport} built with these options.
+     */
+    GraphqlTransport transport;
+
+    /**
+     * The max encoded size of the file changes in one commit. A larger change
+     * list is split into several chained commits on the same branch, null
+     * means never split.
+     */
+    DataSize maxCommitSize;
+
+    /**
+     * Whether to skip the update files which are the same as the remote
+     * files, by comparing their git blob oid. The commit is skipped if
+     * nothing is changed.
+     */
+    boolean skipUnchangedFiles;
+
+    /**
+     * The time to live of the cached head oid of branches. The cached oid is
+     * used as the expected head oid of the next commit without looking it up,
+     * null means never cache.
+     */
+    Duration headCacheTtl;
+
+    /**
+     * The max number of branches in the head oid cache.
+     */
+    int headCacheMaxSize = 1024;
+
+    /**
+     * The tokens to spread the requests over, each with its own rate limit
+     * budget. They are used in place of the user token of the commit input,
+     * empty means using the user token of the commit input. The http endpoint
+     * only accepts the callers whose token is one of the pool then.
+     */
+    List<String> tokenPool = Collections.emptyList();
+
+    /**
+     * The max rate of requests of one token, 0 means only throttled by the
+     * rate limits reported by github.
+     */
+    double maxRequestsPerSecond;
+
+    /**
+     * The max time of a request to wait for the rate limit, a request which
+     * would wait longer fails at once.
+     */
+    Duration rateLimitMaxWait = Duration.ofMinutes(5);
+
+    /**
+     * The number of threads to read and encode the update files in parallel
+     * ahead of writing the request, 1 means encoding every file while writing
+     * it.
+     */
+    int encodeParallelism = 1;
+
+    /**
+     * The max size of the encoded file contents held ahead of writing the
+     * request, when encoding in parallel.
+     */
+    DataSize maxEncodeBufferSize = DataSize.ofMegabytes(64);
+
+    /**
+     * The max total size of the cached base64 contents of update files, which
+     * are held outside the heap, null means never cache. The direct memory of
+     * the jvm (<code>-XX:MaxDirectMemorySize</code>) must be large enough.
+     */
+    DataSize contentCacheSize;
+
+    /**
+     * The max size of the cached base64 contents of one file, a larger file
+     * is encoded on every commit.
+     */
+    DataSize contentCacheMaxEntrySize = DataSize.ofMegabytes(8);
+
+    /**
+     * The max estimated cost of a query of
+     * {@link GithubCommitOperation#lookupHeads}, one per repository and one
+     * per branch. More branches are looked up by several queries.
+     */
+    int headLookupMaxCost = 100;
+
+    /**
+     * The registry of the metrics of committing, null means the global
+     * registry of micrometer.
+     */
+    MeterRegistry meterRegistry;
+
+    /**
+     * The max number of times to retry a commit rejected because the branch
+     * has been moved by another writer, with the head looked up again. 0
+     * means failing with a {@link GithubStaleHeadOidException} at once.
+     */
+    int maxStaleHeadRetries;
+
+    /**
+     * The base delay of retrying a rejected commit, which is doubled on every
+     * retry up to {@link #staleHeadRetryMaxBackoff}. The actual delay is a
+     * random time within it, so the contending writers spread out.
+     */
+    Duration staleHeadRetryBackoff = Duration.ofMillis(50);
+
+    Duration staleHeadRetryMaxBackoff = Duration.ofSeconds(2);
+
+    /**
+     * The max size of a commit request to keep in memory for retrying, a
+     * larger request is written from the files again on every retry.
+     */
+    DataSize maxRetainedRequestSize = DataSize.ofMegabytes(16);
+
+    /**
+     * The max total estimated size of the encoded payloads of the commits in
+     * flight. A commit waits until the former commits are done if the budget
+     * is exhausted, null means no limit.
+     */
+    DataSize maxInFlightPayloadSize;
+
+    /**
+     * The max time of a commit to wait for the in-flight payload budget, a
+     * commit which would wait longer fails. Null or zero means failing at
+     * once if the budget is exhausted.
+     */
+    Duration inFlightPayloadMaxWait = Duration.ofMinutes(1);
+}
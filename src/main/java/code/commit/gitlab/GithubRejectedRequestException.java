@@ -0,0 +1,17 @@
+package code.commit.gitlab;
+
+/**
+ * Thrown when github rejects a request for good, e.g. a graphql error or a
+ * 4xx http status other than the rate limits, so sending the same request
+ * again fails the same way.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+public class GithubRejectedRequestException extends GithubRemoteRepositoryOperationException {
+
+    public GithubRejectedRequestException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,31 @@
+package code.commit.gitlab;
+
+/**
+ * Thrown when the expected head oid of a commit is not the head of the branch
+ * any more, which means the branch has been moved by another writer.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+public class GithubStaleHeadOidException extends GithubRemoteRepositoryOperationException {
+
+    private final long requestBytes;
+
+    public GithubStaleHeadOidException(String message) {
+        this(message, 0);
+    }
+
+    /**
+     * @param requestBytes
+     *            the size of the rejected request
+     */
+    public GithubStaleHeadOidException(String message, long requestBytes) {
+        super(message);
+        this.requestBytes = requestBytes;
+    }
+
+    public long getRequestBytes() {
+        return this.requestBytes;
+    }
+}
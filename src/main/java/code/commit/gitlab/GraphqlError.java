@@ -0,0 +1,19 @@
+package code.commit.gitlab;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * An error in the graphql response.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+@Accessors(chain = true)
+@Data
+public class GraphqlError {
+
+    String type;
+    String message;
+}
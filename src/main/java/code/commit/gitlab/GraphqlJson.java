@@ -0,0 +1,127 @@
+package code.commit.gitlab;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+
+/**
+ * Write graphql requests and read graphql responses with the streaming api
+ * of jackson, in one pass and without any intermediate tree.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+final class GraphqlJson {
+
+    private static final JsonFactory FACTORY = JsonFactory.builder()
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .build();
+
+    private GraphqlJson() {
+    }
+
+    static JsonGenerator createGenerator(OutputStream out) throws IOException {
+        return FACTORY.createGenerator(out);
+    }
+
+    /**
+     * @param query
+     *            the static graphql query
+     * @param variables
+     *            the variables, whose values are strings
+     * @return the json request body
+     */
+    static GraphqlRequestBody toRequestBody(String query, Map<String, String> variables) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try (JsonGenerator g = createGenerator(out)) {
+            g.writeStartObject();
+            g.writeStringField("query", query);
+            g.writeObjectFieldStart("variables");
+            for (Map.Entry<String, String> item : variables.entrySet()) {
+                g.writeStringField(item.getKey(), item.getValue());
+            }
+            g.writeEndObject();
+            g.writeEndObject();
+        } catch (IOException e) {
+            throw new GithubRemoteRepositoryOperationException("Failed to write graphql request", e);
+        }
+        return GraphqlRequestBody.of(out.toByteArray());
+    }
+
+    /**
+     * @param body
+     *            the json response body
+     * @return the values and errors of the response
+     */
+    static GraphqlResult parse(String body) {
+        GraphqlResult result = new GraphqlResult();
+        try (JsonParser p = FACTORY.createParser(body)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                throw new GithubRemoteRepositoryOperationException("Invalid graphql response: " + body);
+            }
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String name = p.getCurrentName();
+                p.nextToken();
+                if ("data".equals(name)) {
+                    readValues(p, null, result.values);
+                } else if ("errors".equals(name) && p.currentToken() == JsonToken.START_ARRAY) {
+                    while (p.nextToken() == JsonToken.START_OBJECT) {
+                        result.errors.add(readError(p));
+                    }
+                } else {
+                    p.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            throw new GithubRemoteRepositoryOperationException("Invalid graphql response: " + body, e);
+        }
+        return result;
+    }
+
+    private static void readValues(JsonParser p, String path, Map<String, String> values) throws IOException {
+        switch (p.currentToken()) {
+        case START_OBJECT:
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String name = p.getCurrentName();
+                p.nextToken();
+                readValues(p, path == null ? name : path + "." + name, values);
+            }
+            break;
+        case START_ARRAY:
+            while (p.nextToken() != JsonToken.END_ARRAY) {
+                readValues(p, path, values);
+            }
+            break;
+        case VALUE_NULL:
+            break;
+        default:
+            if (path != null) {
+                values.putIfAbsent(path, p.getValueAsString());
+            }
+        }
+    }
+
+    private static GraphqlError readError(JsonParser p) throws IOException {
+        GraphqlError error = new GraphqlError();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            p.nextToken();
+            if ("type".equals(name)) {
+                error.setType(p.getValueAsString());
+            } else if ("message".equals(name)) {
+                error.setMessage(p.getValueAsString());
+            } else {
+                p.skipChildren();
+            }
+        }
+        return error;
+    }
+}
@@ -0,0 +1,56 @@
+package code.commit.gitlab;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The json body of a graphql request, which is written to the request stream.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+public interface GraphqlRequestBody {
+
+    /**
+     * @return the exact length of the body in bytes, or -1 if it is unknown
+     *         and the body is sent chunked
+     */
+    long getContentLength();
+
+    /**
+     * @return whether the body can be written more than once, e.g. to resend
+     *         a request rejected by the rate limit
+     */
+    default boolean isRepeatable() {
+        return true;
+    }
+
+    /**
+     * Write the whole body, the output stream is not closed.
+     *
+     * @param out
+     *            the request stream
+     * @throws IOException
+     */
+    void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * @param data
+     *            the json body in UTF-8
+     * @return a request body of the bytes
+     */
+    static GraphqlRequestBody of(byte[] data) {
+        return new GraphqlRequestBody() {
+            @Override
+            public long getContentLength() {
+                return data.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(data);
+            }
+        };
+    }
+}
@@ -0,0 +1,97 @@
+package code.commit.gitlab;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import lombok.AccessLevel;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+/**
+ * The http response of a graphql request.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+@Accessors(chain = true)
+@Data
+public class GraphqlResponse {
+
+    int statusCode;
+    String body;
+
+    /**
+     * The first value of every header by its name, case insensitive.
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    Map<String, String> headers;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    GraphqlResult result;
+
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    long parseNanos;
+
+    public boolean is2xxSuccessful() {
+        return this.statusCode / 100 == 2;
+    }
+
+    /**
+     * @param headers
+     *            the values of the headers by their names, e.g. the header
+     *            fields of a url connection, whose status line is keyed by
+     *            null
+     * @return current response
+     */
+    public GraphqlResponse setHeaders(Map<String, List<String>> headers) {
+        Map<String, String> first = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headers.forEach((name, values) -> {
+            if (name != null && values != null && !values.isEmpty()) {
+                first.put(name, values.get(0));
+            }
+        });
+        this.headers = first;
+        return this;
+    }
+
+    /**
+     * @return the first value of the header, or null
+     */
+    public String getHeader(String name) {
+        return this.headers == null ? null : this.headers.get(name);
+    }
+
+    /**
+     * @return the parsed body, which is parsed once however many times it is
+     *         read, e.g. by the rate limit scheduler and then by the commit
+     *         operation
+     */
+    public GraphqlResult getResult() {
+        if (this.result == null) {
+            long start = System.nanoTime();
+            this.result = GraphqlJson.parse(this.body);
+            this.parseNanos = System.nanoTime() - start;
+        }
+        return this.result;
+    }
+
+    /**
+     * @return the time of parsing the body, wherever it is first read, or 0
+     *         if it is not parsed yet
+     */
+    public long getParseNanos() {
+        return this.parseNanos;
+    }
+}
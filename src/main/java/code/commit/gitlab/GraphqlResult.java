@@ -0,0 +1,44 @@
+package code.commit.gitlab;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.ToString;
+
+/**
+ * The parsed graphql response. The scalar values in <code>data</code> are
+ * kept as strings, keyed by the dotted path of their field names (or
+ * aliases); array indexes are not a part of the path, and the first value of
+ * a path wins.
+ * <p>
+ * e.g: <b>createCommitOnBranch.commit.oid</b>
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+@ToString
+public class GraphqlResult {
+
+    final Map<String, String> values = new HashMap<>();
+    final List<GraphqlError> errors = new ArrayList<>(0);
+
+    /**
+     * @param path
+     *            the dotted path in data
+     * @return the value, or null if it is absent or null
+     */
+    public String getString(String path) {
+        return this.values.get(path);
+    }
+
+    public List<GraphqlError> getErrors() {
+        return this.errors;
+    }
+
+    public boolean hasErrors() {
+        return !this.errors.isEmpty();
+    }
+}
@@ -0,0 +1,29 @@
+package code.commit.gitlab;
+
+import java.io.Closeable;
+
+/**
+ * The transport which sends graphql requests to the github api endpoint.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+public interface GraphqlTransport extends Closeable {
+
+    /**
+     * Send the request body with the user token, the response is returned
+     * whatever its status code is.
+     *
+     * @param userToken
+     *            the access token
+     * @param body
+     *            the json request body
+     * @return the http response
+     */
+    GraphqlResponse post(String userToken, GraphqlRequestBody body);
+
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,248 @@
+package code.commit.gitlab;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.util.Assert;
+import org.springframework.util.unit.DataSize;
+
+import code.commit.CodeCommitOperation;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A commit operation which groups the commits to the same branch.
+ * <p>
+ * The commits are queued per owner, repository, branch and user token. The
+ * queued change lists are merged into one commit, which is sent when the
+ * number of commits or the size of the update files reaches its limit, or
+ * when the first queued commit has waited for the linger time. The commits of
+ * one branch are sent one after another, and the commits queued meanwhile are
+ * sent together afterwards.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+@Slf4j
+public class GroupCommitOperation implements CodeCommitOperation {
+
+    private final GithubCommitOperation delegate;
+    private final long lingerMillis;
+    private final int maxCommits;
+    private final long maxSize;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService executor;
+    private final Map<String, BranchQueue> queues = new HashMap<>();
+    private boolean shuttingDown;
+
+    /**
+     * @param delegate
+     *            the operation which sends the grouped commits
+     * @param linger
+     *            the max time to wait for more commits
+     * @param maxCommits
+     *            the max number of commits in one group
+     * @param maxSize
+     *            the max size of update files in one group
+     */
+    public GroupCommitOperation(GithubCommitOperation delegate, Duration linger, int maxCommits, DataSize maxSize) {
+        Assert.notNull(delegate, "The delegate operation must not be null!");
+        Assert.isTrue(linger != null && !linger.isNegative(), "The linger time must not be negative!");
+        Assert.isTrue(maxCommits > 0, "The max number of commits must be positive!");
+        Assert.notNull(maxSize, "The max size must not be null!");
+        this.delegate = delegate;
+        this.lingerMillis = linger.toMillis();
+        this.maxCommits = maxCommits;
+        this.maxSize = maxSize.toBytes();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "group-commit-linger");
+            t.setDaemon(true);
+            return t;
+        });
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "group-commit-sender");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Queue the commit and wait until its group is committed.
+     */
+    @Override
+    public void doAction(CommitInput commitInput) {
+        AsyncCommitOperation.join(this.submit(commitInput));
+    }
+
+    /**
+     * Queue the commit.
+     *
+     * @param commitInput
+     *            the commit
+     * @return the grouped commit which contains this commit
+     */
+    public CompletableFuture<CommitResult> submit(CommitInput commitInput) {
+        Assert.notNull(commitInput, "The commit input must not be null!");
+        Assert.notNull(commitInput.getChangeList(), "The change list must not be null!");
+        CompletableFuture<CommitResult> future = new CompletableFuture<>();
+        long size = commitInput.getChangeList().getTotalSizeOfUpdateFiles();
+        String key = keyOf(commitInput);
+        synchronized (this.queues) {
+            Assert.state(!this.shuttingDown, "The group commit operation is shut down!");
+            BranchQueue queue = this.queues.computeIfAbsent(key, k -> new BranchQueue());
+            if (queue.pending == null) {
+                Batch batch = new Batch();
+                batch.lingerTask = this.scheduler.schedule(() -> lingerExpired(key, batch), this.lingerMillis,
+                        TimeUnit.MILLISECONDS);
+                queue.pending = batch;
+            }
+            queue.pending.inputs.add(commitInput);
+            queue.pending.futures.add(future);
+            queue.pending.size += size;
+            if (queue.pending.inputs.size() >= this.maxCommits || queue.pending.size >= this.maxSize) {
+                queue.pending.ready = true;
+                trySend(key, queue);
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Send all queued commits, wait until they are sent, and stop the
+     * background threads. The commits queued behind a group being sent are
+     * sent after it, so the sender threads are stopped only when no branch is
+     * left.
+     */
+    public void shutdown() {
+        synchronized (this.queues) {
+            this.shuttingDown = true;
+            this.queues.forEach(this::trySend);
+            try {
+                while (!this.queues.isEmpty()) {
+                    this.queues.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                GithubRemoteRepositoryOperationException failure = new GithubRemoteRepositoryOperationException(
+                        "Interrupted while shutting down the group commit operation", e);
+                this.queues.values().forEach(queue -> {
+                    if (queue.pending != null) {
+                        queue.pending.lingerTask.cancel(false);
+                        queue.pending.futures.forEach(f -> f.completeExceptionally(failure));
+                        queue.pending = null;
+                    }
+                });
+            }
+        }
+        this.scheduler.shutdown();
+        this.executor.shutdown();
+    }
+
+    private void lingerExpired(String key, Batch batch) {
+        synchronized (this.queues) {
+            BranchQueue queue = this.queues.get(key);
+            if (queue != null && queue.pending == batch) {
+                batch.ready = true;
+                trySend(key, queue);
+            }
+        }
+    }
+
+    /**
+     * Must be called with the lock of queues held.
+     */
+    private void trySend(String key, BranchQueue queue) {
+        if (this.shuttingDown && queue.pending != null) {
+            queue.pending.ready = true;
+        }
+        if (queue.sending || queue.pending == null || !queue.pending.ready) {
+            return;
+        }
+        Batch batch = queue.pending;
+        queue.pending = null;
+        queue.sending = true;
+        batch.lingerTask.cancel(false);
+        this.executor.execute(() -> send(key, queue, batch));
+    }
+
+    private void send(String key, BranchQueue queue, Batch batch) {
+        try {
+            CommitResult result = this.delegate.commit(merge(batch.inputs));
+            batch.futures.forEach(f -> f.complete(result));
+        } catch (RuntimeException e) {
+            log.warn("Failed to send a group of {} commits.", batch.inputs.size(), e);
+            batch.futures.forEach(f -> f.completeExceptionally(e));
+        } finally {
+            synchronized (this.queues) {
+                queue.sending = false;
+                if (queue.pending == null) {
+                    this.queues.remove(key);
+                    this.queues.notifyAll();
+                } else {
+                    trySend(key, queue);
+                }
+            }
+        }
+    }
+
+    private CommitInput merge(List<CommitInput> inputs) {
+        if (inputs.size() == 1) {
+            return inputs.get(0);
+        }
+        CommitInput first = inputs.get(0);
+        CommitInput last = inputs.get(inputs.size() - 1);
+        SourceFilesChangeListBuilder changes = SourceFilesChangeListBuilder.create();
+        StringBuilder body = new StringBuilder();
+        String header = null;
+        for (CommitInput item : inputs) {
+            changes.merge(item.getChangeList());
+            if (item.getCommitMsgHeader() != null) {
+                header = header == null ? item.getCommitMsgHeader() : header;
+                body.append("- ").append(item.getCommitMsgHeader()).append("\n");
+            }
+            if (item.getCommitMsgBody() != null && !item.getCommitMsgBody().isEmpty()) {
+                body.append(item.getCommitMsgBody()).append("\n");
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Group {} commits, owner:{}, repos:{}, branch:{}", inputs.size(), first.getOwner(),
+                    first.getRepoName(), first.getBranch());
+        }
+        return new CommitInput()
+                    .setOwner(first.getOwner())
+                    .setRepoName(first.getRepoName())
+                    .setBranch(first.getBranch())
+                    .setUserToken(last.getUserToken())
+                    .setCommitMsgHeader(header == null ? ""
+                            : String.format("%s (and %d more)", header, inputs.size() - 1))
+                    .setCommitMsgBody(body.toString())
+                    .setChangeList(changes);
+    }
+
+    private static String keyOf(CommitInput commitInput) {
+        return commitInput.getOwner() + "/" + commitInput.getRepoName() + ":" + commitInput.getBranch() + "@"
+                + commitInput.getUserToken();
+    }
+
+    private static class BranchQueue {
+        Batch pending;
+        boolean sending;
+    }
+
+    private static class Batch {
+        final List<CommitInput> inputs = new ArrayList<>();
+        final List<CompletableFuture<CommitResult>> futures = new ArrayList<>();
+        long size;
+        boolean ready;
+        ScheduledFuture<?> lingerTask;
+    }
+}
@@ -0,0 +1,144 @@
+package code.commit.gitlab;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.StreamingHttpOutputMessage;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.util.Assert;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.ResponseErrorHandler;
+import org.springframework.web.client.RestTemplate;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The http transport of graphql requests.
+ * <p>
+ * The request body is never buffered by the request factory, it is streamed
+ * to the connection with its exact content length, or chunked when it is
+ * compressed with gzip or its length is unknown. With a positive <code>maxConnections</code> the
+ * requests go through a pool of keep-alive connections of the apache http
+ * client, otherwise through the JDK <code>HttpURLConnection</code>.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+@Slf4j
+public class HttpGraphqlTransport implements GraphqlTransport {
+
+    private static final ResponseErrorHandler NO_ERROR_HANDLER = new ResponseErrorHandler() {
+        @Override
+        public boolean hasError(ClientHttpResponse response) {
+            return false;
+        }
+
+        @Override
+        public void handleError(ClientHttpResponse response) {
+        }
+    };
+
+    private final String endpoint;
+    private final boolean gzipRequest;
+    private final RestTemplate client;
+    private final CloseableHttpClient httpClient;
+
+    /**
+     * @param options
+     *            the endpoint, timeouts and connection pool of the transport
+     */
+    public HttpGraphqlTransport(GithubCommitOptions options) {
+        Assert.hasLength(options.getEndpoint(), "The endpoint must not be empty!");
+        this.endpoint = options.getEndpoint();
+        this.gzipRequest = options.isGzipRequest();
+        ClientHttpRequestFactory requestFactory;
+        if (options.getMaxConnections() > 0) {
+            this.httpClient = createPooledClient(options.getMaxConnections(), options.getMaxConnectionsPerRoute());
+            HttpComponentsClientHttpRequestFactory factory = new HttpComponentsClientHttpRequestFactory(
+                    this.httpClient);
+            factory.setBufferRequestBody(false);
+            requestFactory = factory;
+        } else {
+            this.httpClient = null;
+            SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
+            factory.setBufferRequestBody(false);
+            requestFactory = factory;
+        }
+        this.client = new RestTemplateBuilder().requestFactory(() -> requestFactory)
+                .setConnectTimeout(options.getConnectTimeout())
+                .setReadTimeout(options.getReadTimeout())
+                .errorHandler(NO_ERROR_HANDLER).build();
+    }
+
+    @Override
+    public GraphqlResponse post(String userToken, GraphqlRequestBody body) {
+        return this.client.execute(this.endpoint, HttpMethod.POST, request -> {
+            HttpHeaders headers = request.getHeaders();
+            headers.setContentType(MediaType.APPLICATION_JSON);
+            headers.setBearerAuth(userToken);
+            if (this.gzipRequest) {
+                headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+            } else if (body.getContentLength() >= 0) {
+                headers.setContentLength(body.getContentLength());
+            }
+            // the streaming request of apache http client only accepts a body callback
+            if (request instanceof StreamingHttpOutputMessage) {
+                ((StreamingHttpOutputMessage) request).setBody(out -> writeBody(body, out));
+            } else {
+                writeBody(body, request.getBody());
+            }
+        }, response -> new GraphqlResponse()
+                .setStatusCode(response.getRawStatusCode())
+                .setHeaders(response.getHeaders())
+                .setBody(StreamUtils.copyToString(response.getBody(), StandardCharsets.UTF_8)));
+    }
+
+    private void writeBody(GraphqlRequestBody body, OutputStream out) throws IOException {
+        if (this.gzipRequest) {
+            GZIPOutputStream gzip = new GZIPOutputStream(StreamUtils.nonClosing(out));
+            body.writeTo(gzip);
+            gzip.close();
+        } else {
+            body.writeTo(out);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (this.httpClient != null) {
+            try {
+                this.httpClient.close();
+            } catch (IOException e) {
+                log.warn("Failed to close http client.", e);
+            }
+        }
+    }
+
+    /**
+     * The idle connections are kept alive for reusing, and so are their TLS
+     * sessions.
+     */
+    private static CloseableHttpClient createPooledClient(int maxConnections, int maxConnectionsPerRoute) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(Math.min(maxConnections, maxConnectionsPerRoute));
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .evictIdleConnections(60, TimeUnit.SECONDS)
+                .build();
+    }
+}
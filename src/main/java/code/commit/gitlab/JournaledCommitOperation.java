@@ -0,0 +1,501 @@
+package code.commit.gitlab;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.util.Assert;
+import org.springframework.util.StreamUtils;
+import org.springframework.util.unit.DataSize;
+
+import code.commit.CodeCommitOperation;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A commit operation which writes the commits ahead to a local journal.
+ * <p>
+ * A commit is acknowledged once it is appended to the journal and forced to
+ * the disk, together with the other commits appended meanwhile. A background
+ * thread replays the journaled commits to github one after another in the
+ * order of appending, and checkpoints the last replayed one. The commits
+ * after the checkpoint are replayed again when the journal is opened after a
+ * restart, so a commit is sent at least once, and twice if the process died
+ * between sending it and saving the checkpoint.
+ * <p>
+ * The manifests of a change list are saved once it is replayed. They are not
+ * journaled, so the manifests of the commits replayed after a restart are not
+ * saved, and their files are committed again by the next sync.
+ * <p>
+ * The local files of the change lists are journaled by their absolute paths
+ * and read when replayed, or journaled with their contents if
+ * <code>embedFileContents</code> is set. The contents in memory and in
+ * streams are always journaled.
+ * <p>
+ * A commit failing to replay for a while, e.g. github is unreachable, answers
+ * 5xx or rate limits it, is retried with the backoff doubled up to a minute
+ * until it succeeds, so the later commits wait for it. A commit which can
+ * never be committed, e.g. a referenced file is missing, or github rejects it
+ * with a graphql error or another 4xx, is moved to the dead letter file of
+ * the journal instead, so it does not stall the later commits. If the
+ * journal fails to be read, the replay stops, and the journal fails the
+ * later appends until it is opened again.
+ * <p>
+ * The user tokens are journaled too, so the directory must be private.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+@Slf4j
+public class JournaledCommitOperation implements CodeCommitOperation, Closeable {
+
+    private static final long RETRY_BACKOFF_MILLIS = 1000;
+    private static final long MAX_RETRY_BACKOFF_MILLIS = 60_000;
+    private static final int MAX_BATCH = 1024;
+    private static final byte FILE_REFERENCE = 0;
+    private static final byte CONTENT = 1;
+
+    private final GithubCommitOperation delegate;
+    private final CommitJournal journal;
+    private final boolean embedFileContents;
+    private final BlockingQueue<Append> appends = new LinkedBlockingQueue<>();
+    /**
+     * The change lists of the journaled commits whose manifests are saved
+     * once they are replayed, by their sequences.
+     */
+    private final Map<Long, SourceFilesChangeListBuilder> unsavedManifests = new ConcurrentHashMap<>();
+    private final Object drainLock = new Object();
+    private final Thread writer;
+    private final Thread drainer;
+    private final AtomicLong deadLetterCount = new AtomicLong();
+    private volatile boolean closed;
+    private volatile Throwable drainFailure;
+    private int pendingAppends;
+    private volatile long appendedSeq;
+    private volatile long drainedSeq;
+
+    /**
+     * Open the journal in the directory with the local files journaled by
+     * their paths, and replay the commits left by the former process.
+     *
+     * @param delegate
+     *            the operation which sends the commits
+     * @param directory
+     *            the directory of the journal, which is created if absent
+     */
+    public JournaledCommitOperation(GithubCommitOperation delegate, Path directory) {
+        this(delegate, directory, false, DataSize.ofMegabytes(64));
+    }
+
+    /**
+     * Open the journal in the directory, and replay the commits left by the
+     * former process.
+     *
+     * @param delegate
+     *            the operation which sends the commits
+     * @param directory
+     *            the directory of the journal, which is created if absent
+     * @param embedFileContents
+     *            whether to journal the contents of the local files, so the
+     *            files are committed as they were when appended
+     * @param maxSegmentSize
+     *            the size of a journal file to start a new one, the drained
+     *            files are deleted
+     */
+    public JournaledCommitOperation(GithubCommitOperation delegate, Path directory, boolean embedFileContents,
+            DataSize maxSegmentSize) {
+        Assert.notNull(delegate, "The delegate operation must not be null!");
+        Assert.notNull(directory, "The journal directory must not be null!");
+        Assert.notNull(maxSegmentSize, "The max segment size must not be null!");
+        this.delegate = delegate;
+        this.embedFileContents = embedFileContents;
+        try {
+            this.journal = new CommitJournal(directory, maxSegmentSize.toBytes());
+        } catch (IOException e) {
+            throw new GithubRemoteRepositoryOperationException("Failed to open the commit journal: " + directory, e);
+        }
+        this.appendedSeq = this.journal.getLastSeq();
+        this.drainedSeq = this.journal.getCheckpoint();
+        this.writer = new Thread(this::write, "commit-journal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        this.drainer = new Thread(this::drain, "commit-journal-drainer");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    /**
+     * Append the commit and wait until it is durable, not until it is
+     * committed.
+     */
+    @Override
+    public void doAction(CommitInput commitInput) {
+        AsyncCommitOperation.join(this.append(commitInput));
+    }
+
+    /**
+     * Append the commit to the journal. The manifests of the change list are
+     * saved once it is replayed.
+     *
+     * @param commitInput
+     *            the commit
+     * @return the sequence of the commit in the journal, completed once it is
+     *         forced to the disk
+     */
+    public CompletableFuture<Long> append(CommitInput commitInput) {
+        Assert.notNull(commitInput, "The commit input must not be null!");
+        Assert.notNull(commitInput.getChangeList(), "The change list must not be null!");
+        SourceFilesChangeListBuilder changeList = commitInput.getChangeList();
+        Append append = new Append(encode(commitInput), changeList.hasManifests() ? changeList : null);
+        synchronized (this.drainLock) {
+            Assert.state(!this.closed, "The commit journal is closed!");
+            if (this.drainFailure != null) {
+                throw stopped();
+            }
+            this.pendingAppends++;
+            this.appends.add(append);
+        }
+        return append.future;
+    }
+
+    /**
+     * @return the sequence of the last durable commit
+     */
+    public long getAppendedSeq() {
+        return this.appendedSeq;
+    }
+
+    /**
+     * @return the sequence of the last replayed commit
+     */
+    public long getDrainedSeq() {
+        return this.drainedSeq;
+    }
+
+    /**
+     * @return the number of the commits moved to the dead letter file
+     */
+    public long getDeadLetterCount() {
+        return this.deadLetterCount.get();
+    }
+
+    /**
+     * @return the failure which stopped replaying the journal, or null
+     */
+    public Throwable getDrainFailure() {
+        return this.drainFailure;
+    }
+
+    /**
+     * Wait until the commits appended so far are replayed.
+     *
+     * @return whether they are replayed within the timeout, false if closed
+     *         before
+     * @throws GithubRemoteRepositoryOperationException
+     *             if the replay has stopped on a failure
+     */
+    public boolean awaitDrained(Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        synchronized (this.drainLock) {
+            while (this.pendingAppends > 0 || this.drainedSeq < this.appendedSeq) {
+                if (this.drainFailure != null) {
+                    throw stopped();
+                }
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0 || !this.drainer.isAlive()) {
+                    return false;
+                }
+                this.drainLock.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Force the pending appends to the disk and stop replaying after the
+     * current commit, the rest is replayed when the journal is opened again.
+     */
+    @Override
+    public void close() {
+        synchronized (this.drainLock) {
+            this.closed = true;
+            this.drainLock.notifyAll();
+        }
+        try {
+            this.writer.join();
+            this.drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            this.journal.close();
+        } catch (IOException e) {
+            log.warn("Failed to close the commit journal.", e);
+        }
+    }
+
+    private void write() {
+        List<Append> batch = new ArrayList<>();
+        List<byte[]> payloads = new ArrayList<>();
+        while (!this.closed || !this.appends.isEmpty()) {
+            try {
+                Append first = this.appends.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            this.appends.drainTo(batch, MAX_BATCH - 1);
+            batch.forEach(a -> payloads.add(a.payload));
+            try {
+                long last = this.journal.append(payloads);
+                long seq = last - batch.size();
+                for (Append append : batch) {
+                    seq++;
+                    // before the drainer sees the sequence
+                    if (append.manifests != null) {
+                        this.unsavedManifests.put(seq, append.manifests);
+                    }
+                }
+                synchronized (this.drainLock) {
+                    this.appendedSeq = last;
+                    this.pendingAppends -= batch.size();
+                    this.drainLock.notifyAll();
+                }
+                seq = last - batch.size();
+                for (Append append : batch) {
+                    append.future.complete(++seq);
+                }
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to append {} commits to the journal.", batch.size(), e);
+                GithubRemoteRepositoryOperationException failure = new GithubRemoteRepositoryOperationException(
+                        "Failed to append to the commit journal", e);
+                batch.forEach(a -> a.future.completeExceptionally(failure));
+                synchronized (this.drainLock) {
+                    this.pendingAppends -= batch.size();
+                    this.drainLock.notifyAll();
+                }
+            }
+            batch.clear();
+            payloads.clear();
+        }
+    }
+
+    private void drain() {
+        long seq = this.drainedSeq;
+        try {
+            while (true) {
+                synchronized (this.drainLock) {
+                    while (!this.closed && seq >= this.appendedSeq) {
+                        this.drainLock.wait();
+                    }
+                    if (this.closed) {
+                        return;
+                    }
+                }
+                if (!replay(++seq, this.journal.read(seq))) {
+                    return;
+                }
+                this.journal.checkpoint(seq);
+                synchronized (this.drainLock) {
+                    this.drainedSeq = seq;
+                    this.drainLock.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            // the journal is left as it is, and replayed from the checkpoint when opened again
+            log.error("Stop replaying the commit journal at {}.", seq, e);
+            this.drainFailure = e;
+        } finally {
+            synchronized (this.drainLock) {
+                this.drainLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return false if closed before the commit is done
+     */
+    private boolean replay(long seq, ByteBuffer payload) throws IOException, InterruptedException {
+        long backoff = RETRY_BACKOFF_MILLIS;
+        for (int attempt = 1;; attempt++) {
+            try {
+                // decoded on every attempt, e.g. a referenced file may be deleted meanwhile
+                this.delegate.commit(decode(payload.duplicate()));
+                SourceFilesChangeListBuilder changeList = this.unsavedManifests.remove(seq);
+                if (changeList != null) {
+                    changeList.saveManifests();
+                }
+                return true;
+            } catch (RuntimeException e) {
+                if (isPermanent(e)) {
+                    log.error("Move the journaled commit {} to the dead letter file.", seq, e);
+                    this.unsavedManifests.remove(seq);
+                    this.journal.deadLetter(seq, payload);
+                    this.deadLetterCount.incrementAndGet();
+                    return true;
+                }
+                log.warn("Failed to replay the journaled commit {}, attempt: {}, retry in {} ms", seq, attempt,
+                        backoff, e);
+            }
+            long deadline = System.currentTimeMillis() + backoff;
+            backoff = Math.min(backoff * 2, MAX_RETRY_BACKOFF_MILLIS);
+            synchronized (this.drainLock) {
+                long remaining;
+                while (!this.closed && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    this.drainLock.wait(remaining);
+                }
+                if (this.closed) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the commit fails the same way however many times it is
+     *         replayed: it is invalid, a referenced file is missing, or github
+     *         rejects it, e.g. a part of a split commit
+     */
+    private static boolean isPermanent(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof IllegalArgumentException || t instanceof GithubRejectedRequestException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private GithubRemoteRepositoryOperationException stopped() {
+        return new GithubRemoteRepositoryOperationException("The commit journal stopped replaying after "
+                + this.drainedSeq + ", open it again to resume", this.drainFailure);
+    }
+
+    /**
+     * Encode the commit as <b>{owner} {repoName} {branch} {userToken} {header}
+     * {body} {deletions} {updates}</b>, an update is its relative path
+     * followed by the absolute path of its file or by its content.
+     */
+    private byte[] encode(CommitInput commitInput) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeString(out, commitInput.getOwner());
+            writeString(out, commitInput.getRepoName());
+            writeString(out, commitInput.getBranch());
+            writeString(out, commitInput.getUserToken());
+            writeString(out, commitInput.getCommitMsgHeader());
+            writeString(out, commitInput.getCommitMsgBody());
+            SourceFilesChangeListBuilder changeList = commitInput.getChangeList();
+            out.writeInt(changeList.getDeletions().size());
+            for (String deletion : changeList.getDeletions()) {
+                writeString(out, deletion);
+            }
+            out.writeInt(changeList.getUpdates().size());
+            for (Map.Entry<String, UpdateSource> update : changeList.getUpdates().entrySet()) {
+                writeString(out, update.getKey());
+                UpdateSource source = update.getValue();
+                if (source.getFile() != null && !this.embedFileContents) {
+                    out.writeByte(FILE_REFERENCE);
+                    writeString(out, source.getFile().toAbsolutePath().toString());
+                    continue;
+                }
+                long size = source.size();
+                Assert.isTrue(size <= Integer.MAX_VALUE, "Too large content to journal: " + source);
+                out.writeByte(CONTENT);
+                out.writeInt((int) size);
+                try (InputStream in = source.openStream()) {
+                    int copied = StreamUtils.copy(in, out);
+                    Assert.isTrue(copied == size, "The content is not of its size: " + source);
+                }
+            }
+        } catch (IOException e) {
+            throw new GithubRemoteRepositoryOperationException("Failed to journal the commit", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static CommitInput decode(ByteBuffer payload) {
+        CommitInput commitInput = new CommitInput()
+                .setOwner(readString(payload))
+                .setRepoName(readString(payload))
+                .setBranch(readString(payload))
+                .setUserToken(readString(payload))
+                .setCommitMsgHeader(readString(payload))
+                .setCommitMsgBody(readString(payload));
+        SourceFilesChangeListBuilder changeList = SourceFilesChangeListBuilder.create();
+        for (int i = payload.getInt(); i > 0; i--) {
+            changeList.addDeleteFile(readString(payload));
+        }
+        for (int i = payload.getInt(); i > 0; i--) {
+            String relativePath = readString(payload);
+            if (payload.get() == FILE_REFERENCE) {
+                changeList.addUpdateFile(Paths.get(readString(payload)), relativePath);
+                continue;
+            }
+            int length = payload.getInt();
+            ByteBuffer content = payload.slice();
+            content.limit(length);
+            payload.position(payload.position() + length);
+            // the buffer of the record is not shared, so the content is not copied
+            changeList.addUpdateContent(content, relativePath);
+        }
+        return commitInput.setChangeList(changeList);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static class Append {
+        final byte[] payload;
+        final SourceFilesChangeListBuilder manifests;
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        /**
+         * @param manifests
+         *            the change list whose manifests are saved once replayed,
+         *            or null
+         */
+        Append(byte[] payload, SourceFilesChangeListBuilder manifests) {
+            this.payload = payload;
+            this.manifests = manifests;
+        }
+    }
+}
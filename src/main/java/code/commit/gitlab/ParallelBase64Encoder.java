@@ -0,0 +1,190 @@
+package code.commit.gitlab;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read and encode the update files with base64 on an executor, ahead of
+ * writing them in order.
+ * <p>
+ * Every file is split into chunks of {@link #CHUNK_SIZE} bytes, a multiple of
+ * 3, so the base64 of the chunks concatenated is the base64 of the file. The
+ * chunks are encoded in parallel, large chunks of files are read with a memory
+ * mapping, the chunks of buffers are encoded in place, and the encoded chunks
+ * are written in the order of the files. At most
+ * <code>maxInFlightBytes</code> of encoded chunks are held ahead of the
+ * writing, but at least one.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+class ParallelBase64Encoder implements Closeable {
+
+    static final int CHUNK_SIZE = 3 * 1024 * 1024;
+    /**
+     * The smaller chunks are read into the heap, a mapping costs more.
+     */
+    private static final int MMAP_THRESHOLD = 256 * 1024;
+
+    private final List<UpdateSource> files;
+    private final List<Long> sizes;
+    private final Executor executor;
+    private final long maxInFlightBytes;
+    private final LongAdder readNanos;
+    private final List<Chunk> chunks = new ArrayList<>();
+    private final Deque<CompletableFuture<ByteBuffer>> inFlight = new ArrayDeque<>();
+    private long inFlightBytes;
+    private int nextChunk;
+    private int nextWrittenChunk;
+
+    /**
+     * @param readNanos
+     *            the time of reading the files is added to it
+     */
+    ParallelBase64Encoder(List<UpdateSource> files, List<Long> sizes, Executor executor, long maxInFlightBytes,
+            LongAdder readNanos) {
+        this.files = files;
+        this.sizes = sizes;
+        this.executor = executor;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.readNanos = readNanos;
+        for (int i = 0; i < files.size(); i++) {
+            long size = sizes.get(i);
+            long position = 0;
+            do {
+                int length = (int) Math.min(CHUNK_SIZE, size - position);
+                this.chunks.add(new Chunk(i, position, length, position + length == size));
+                position += length;
+            } while (position < size);
+        }
+    }
+
+    /**
+     * Write the base64 of the next file.
+     *
+     * @param copy
+     *            the buffer to copy the base64 into as well, or null
+     */
+    void writeNext(OutputStream out, ByteBuffer copy) throws IOException {
+        Chunk chunk;
+        do {
+            submit();
+            chunk = this.chunks.get(this.nextWrittenChunk++);
+            ByteBuffer encoded = join(this.inFlight.poll());
+            out.write(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+            if (copy != null) {
+                copy.put(encoded);
+            }
+            this.inFlightBytes -= chunk.encodedLength();
+        } while (!chunk.last);
+    }
+
+    /**
+     * Submit the next chunks within the budget.
+     */
+    private void submit() {
+        while (this.nextChunk < this.chunks.size()) {
+            Chunk chunk = this.chunks.get(this.nextChunk);
+            if (!this.inFlight.isEmpty() && this.inFlightBytes + chunk.encodedLength() > this.maxInFlightBytes) {
+                return;
+            }
+            UpdateSource file = this.files.get(chunk.fileIndex);
+            long size = this.sizes.get(chunk.fileIndex);
+            this.inFlight.add(CompletableFuture.supplyAsync(() -> encode(file, size, chunk, this.readNanos),
+                    this.executor));
+            this.inFlightBytes += chunk.encodedLength();
+            this.nextChunk++;
+        }
+    }
+
+    @Override
+    public void close() {
+        for (CompletableFuture<ByteBuffer> item : this.inFlight) {
+            item.cancel(false);
+        }
+        this.inFlight.clear();
+    }
+
+    private static ByteBuffer encode(UpdateSource source, long size, Chunk chunk, LongAdder readNanos) {
+        ByteBuffer buffer = source.getBuffer();
+        if (buffer != null) {
+            buffer.position((int) chunk.position).limit((int) chunk.position + chunk.length);
+            return Base64.getEncoder().encode(buffer);
+        }
+        Path file = source.getFile();
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() != size) {
+                throw new GithubRemoteRepositoryOperationException(
+                        "The file has been changed while committing: " + file);
+            }
+            ByteBuffer data;
+            if (chunk.length >= MMAP_THRESHOLD) {
+                data = channel.map(FileChannel.MapMode.READ_ONLY, chunk.position, chunk.length);
+            } else {
+                data = ByteBuffer.allocate(chunk.length);
+                while (data.hasRemaining()) {
+                    if (channel.read(data, chunk.position + data.position()) < 0) {
+                        throw new GithubRemoteRepositoryOperationException(
+                                "The file has been changed while committing: " + file);
+                    }
+                }
+                data.flip();
+            }
+            // the pages of a mapped chunk are faulted in while encoding, which is not counted here
+            readNanos.add(System.nanoTime() - start);
+            return Base64.getEncoder().encode(data);
+        } catch (IOException e) {
+            throw new GithubRemoteRepositoryOperationException("Failed to read file: " + file, e);
+        }
+    }
+
+    private static ByteBuffer join(CompletableFuture<ByteBuffer> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding files", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new GithubRemoteRepositoryOperationException("Failed to encode file", cause);
+        }
+    }
+
+    private static class Chunk {
+        final int fileIndex;
+        final long position;
+        final int length;
+        final boolean last;
+
+        Chunk(int fileIndex, long position, int length, boolean last) {
+            this.fileIndex = fileIndex;
+            this.position = position;
+            this.length = length;
+            this.last = last;
+        }
+
+        long encodedLength() {
+            return StreamingCommitBody.base64LengthOf(this.length);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package code.commit.gitlab;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.util.Assert;
+
+/**
+ * The budget of the payloads of the commits in flight, so a burst of large
+ * commits can not exhaust the heap.
+ * <p>
+ * A commit reserves its estimated encoded size before it is sent, and
+ * releases it once it is done. A commit larger than the whole budget
+ * reserves the whole budget, so it is sent alone. The commits waiting for
+ * the budget are admitted in the order of arrival, so a large commit is not
+ * starved by the small ones behind it.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+class PayloadBudget {
+
+    private final long maxBytes;
+    private final long maxWaitNanos;
+    private final Deque<Object> waiters = new ArrayDeque<>();
+    private long usedBytes;
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * @param maxBytes
+     *            the max total size of the payloads in flight
+     * @param maxWaitNanos
+     *            the max time to wait for the budget, 0 means failing at once
+     *            if the budget is exhausted
+     */
+    PayloadBudget(long maxBytes, long maxWaitNanos) {
+        Assert.isTrue(maxBytes > 0, "The max in-flight payload size must be positive!");
+        this.maxBytes = maxBytes;
+        this.maxWaitNanos = Math.max(0, maxWaitNanos);
+    }
+
+    /**
+     * Reserve the size, waiting for the former commits to release theirs.
+     *
+     * @param bytes
+     *            the estimated size of the payload
+     * @return the reserved size, which must be released
+     */
+    synchronized long acquire(long bytes) {
+        long amount = Math.min(Math.max(0, bytes), this.maxBytes);
+        if (this.waiters.isEmpty() && this.usedBytes + amount <= this.maxBytes) {
+            this.usedBytes += amount;
+            return amount;
+        }
+        if (this.maxWaitNanos == 0) {
+            throw exhausted(amount);
+        }
+        Object waiter = new Object();
+        this.waiters.addLast(waiter);
+        long deadline = System.nanoTime() + this.maxWaitNanos;
+        try {
+            while (this.waiters.peekFirst() != waiter || this.usedBytes + amount > this.maxBytes) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw exhausted(amount);
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            this.usedBytes += amount;
+            return amount;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GithubRemoteRepositoryOperationException("Interrupted while waiting for the payload budget", e);
+        } finally {
+            this.waiters.remove(waiter);
+            // the next waiter may fit now
+            notifyAll();
+        }
+    }
+
+    synchronized void release(long amount) {
+        this.usedBytes -= amount;
+        notifyAll();
+    }
+
+    synchronized long getUsedBytes() {
+        return this.usedBytes;
+    }
+
+    synchronized int getWaitingCount() {
+        return this.waiters.size();
+    }
+
+    long getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    private GithubRemoteRepositoryOperationException exhausted(long amount) {
+        this.rejectedCount.incrementAndGet();
+        return new GithubRemoteRepositoryOperationException("The in-flight payload budget is exhausted, used: "
+                + this.usedBytes + ", requested: " + amount + ", max: " + this.maxBytes);
+    }
+}
@@ -0,0 +1,285 @@
+package code.commit.gitlab;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.util.Assert;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The scheduler of graphql requests in front of a transport, which keeps the
+ * requests within the rate limits of github instead of failing with them.
+ * <p>
+ * Every token has a budget, which is a token bucket refilled at
+ * <code>maxRequestsPerSecond</code>, and the points remaining until the reset
+ * as reported by the <code>x-ratelimit-*</code> headers or the
+ * <code>rateLimit { cost remaining resetAt }</code> data. When the remaining
+ * points run low, the requests are spread over the time left until the reset;
+ * when they run out, the token waits for the reset. A request rejected by a
+ * primary or secondary rate limit waits for <code>Retry-After</code> (or the
+ * reset, or one minute) and is sent again.
+ * <p>
+ * With a token pool, every request goes to the token which is available the
+ * earliest.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+@Slf4j
+public class RateLimitScheduler implements GraphqlTransport {
+
+    static final String HEADER_LIMIT = "x-ratelimit-limit";
+    static final String HEADER_REMAINING = "x-ratelimit-remaining";
+    static final String HEADER_RESET = "x-ratelimit-reset";
+    static final String HEADER_RETRY_AFTER = "Retry-After";
+    private static final String ERR_RATE_LIMITED = "\"RATE_LIMITED\"";
+    private static final String ERR_SECONDARY_RATE_LIMIT = "secondary rate limit";
+    private static final long SECONDARY_LIMIT_BACKOFF_NANOS = TimeUnit.MINUTES.toNanos(1);
+    /**
+     * The requests are spread until the reset below this part of the limit.
+     */
+    private static final double PACING_THRESHOLD = 0.1;
+
+    private final GraphqlTransport delegate;
+    private final double maxRequestsPerSecond;
+    private final long maxWaitNanos;
+    private final List<Budget> pool = new ArrayList<>();
+    private final Map<String, Budget> budgets = new HashMap<>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong throttledCount = new AtomicLong();
+    private final AtomicLong waitedNanos = new AtomicLong();
+    private final AtomicLong totalCost = new AtomicLong();
+
+    /**
+     * @param delegate
+     *            the transport to send the requests
+     * @param options
+     *            the token pool, the max rate and the max wait
+     */
+    public RateLimitScheduler(GraphqlTransport delegate, GithubCommitOptions options) {
+        Assert.notNull(delegate, "The transport must not be null!");
+        Assert.isTrue(options.getMaxRequestsPerSecond() >= 0, "The max requests per second must not be negative!");
+        this.delegate = delegate;
+        this.maxRequestsPerSecond = options.getMaxRequestsPerSecond();
+        this.maxWaitNanos = options.getRateLimitMaxWait() == null ? 0 : options.getRateLimitMaxWait().toNanos();
+        for (String token : options.getTokenPool()) {
+            Assert.hasLength(token, "The token of the pool must not be empty!");
+            Budget budget = new Budget(token, this.pool.size());
+            this.pool.add(budget);
+            this.budgets.put(token, budget);
+        }
+    }
+
+    @Override
+    public GraphqlResponse post(String userToken, GraphqlRequestBody body) {
+        long deadline = System.nanoTime() + this.maxWaitNanos;
+        while (true) {
+            Budget budget = acquire(userToken, deadline);
+            this.requestCount.incrementAndGet();
+            GraphqlResponse response = this.delegate.post(budget.token, body);
+            if (!update(budget, response) || !body.isRepeatable()) {
+                return response;
+            }
+            this.throttledCount.incrementAndGet();
+            log.warn("Rate limited with token #{}, status: {}, retry in {}ms", budget.index,
+                    response.getStatusCode(), TimeUnit.NANOSECONDS.toMillis(budget.blockedUntil - System.nanoTime()));
+        }
+    }
+
+    /**
+     * Reserve a request on the budget available the earliest, and wait until
+     * it is available.
+     */
+    private Budget acquire(String userToken, long deadline) {
+        Budget budget;
+        long startAt;
+        synchronized (this) {
+            long now = System.nanoTime();
+            budget = this.pool.isEmpty() ? this.budgets.computeIfAbsent(userToken, k -> new Budget(k, -1))
+                    : earliest(now);
+            startAt = budget.availableAt(now, this.maxRequestsPerSecond);
+            if (startAt - deadline > 0) {
+                throw new GithubRemoteRepositoryOperationException(String.format(
+                        "Rate limited, the token #%d is not available in %ds", budget.index,
+                        TimeUnit.NANOSECONDS.toSeconds(startAt - now)));
+            }
+            budget.permits -= 1;
+        }
+        long wait = startAt - System.nanoTime();
+        if (wait > 0) {
+            this.waitedNanos.addAndGet(wait);
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GithubRemoteRepositoryOperationException("Interrupted while waiting for the rate limit", e);
+            }
+        }
+        return budget;
+    }
+
+    private Budget earliest(long now) {
+        Budget earliest = null;
+        long earliestAt = 0;
+        for (Budget budget : this.pool) {
+            long at = budget.availableAt(now, this.maxRequestsPerSecond);
+            if (earliest == null || at - earliestAt < 0
+                    || (at == earliestAt && budget.remaining > earliest.remaining)) {
+                earliest = budget;
+                earliestAt = at;
+            }
+        }
+        return earliest;
+    }
+
+    /**
+     * Update the budget with the rate limit of the response.
+     *
+     * @return whether the request has been rejected by a rate limit
+     */
+    private synchronized boolean update(Budget budget, GraphqlResponse response) {
+        long now = System.nanoTime();
+        Long limit = longHeader(response, HEADER_LIMIT);
+        Long remaining = longHeader(response, HEADER_REMAINING);
+        Long reset = longHeader(response, HEADER_RESET);
+        if (limit != null) {
+            budget.limit = limit;
+        }
+        if (remaining != null) {
+            budget.remaining = remaining;
+        }
+        if (reset != null) {
+            budget.resetAt = now + TimeUnit.MILLISECONDS.toNanos(
+                    TimeUnit.SECONDS.toMillis(reset) - System.currentTimeMillis());
+        }
+        String body = response.getBody() == null ? "" : response.getBody();
+        if (response.is2xxSuccessful() && body.contains("\"rateLimit\"")) {
+            updateFromData(budget, response.getResult(), now);
+        }
+        int status = response.getStatusCode();
+        boolean limited = status == 429 || status == 403 && (budget.remaining == 0
+                || body.contains(ERR_SECONDARY_RATE_LIMIT) || response.getHeader(HEADER_RETRY_AFTER) != null)
+                || response.is2xxSuccessful() && body.contains(ERR_RATE_LIMITED);
+        Long retryAfter = longHeader(response, HEADER_RETRY_AFTER);
+        if (limited && retryAfter != null) {
+            budget.blockedUntil = now + TimeUnit.SECONDS.toNanos(retryAfter);
+        } else if (budget.remaining == 0 && budget.resetAt - now > 0) {
+            budget.blockedUntil = budget.resetAt;
+        } else if (limited) {
+            budget.blockedUntil = now + SECONDARY_LIMIT_BACKOFF_NANOS;
+        }
+        return limited;
+    }
+
+    private void updateFromData(Budget budget, GraphqlResult r, long now) {
+        String remaining = r.getString("rateLimit.remaining");
+        String resetAt = r.getString("rateLimit.resetAt");
+        String cost = r.getString("rateLimit.cost");
+        try {
+            if (remaining != null) {
+                budget.remaining = Long.parseLong(remaining);
+            }
+            if (cost != null) {
+                this.totalCost.addAndGet(Long.parseLong(cost));
+            }
+            if (resetAt != null) {
+                budget.resetAt = now + Duration.between(Instant.now(), Instant.parse(resetAt)).toNanos();
+            }
+        } catch (NumberFormatException | DateTimeParseException e) {
+            log.warn("Invalid rate limit: {}", e.getMessage());
+        }
+    }
+
+    public long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    /**
+     * @return the number of requests rejected by a rate limit and sent again
+     */
+    public long getThrottledCount() {
+        return this.throttledCount.get();
+    }
+
+    public long getWaitedNanos() {
+        return this.waitedNanos.get();
+    }
+
+    /**
+     * @return the points of the queries as reported by the
+     *         <code>rateLimit</code> data
+     */
+    public long getTotalCost() {
+        return this.totalCost.get();
+    }
+
+    @Override
+    public void close() {
+        this.delegate.close();
+    }
+
+    private static Long longHeader(GraphqlResponse response, String name) {
+        String value = response.getHeader(name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The budget of a token, guarded by the scheduler.
+     */
+    private static class Budget {
+        final String token;
+        /**
+         * The index in the pool for logging, the token itself is a secret.
+         */
+        final int index;
+        double permits = 1;
+        long updatedAt = System.nanoTime();
+        long limit = -1;
+        long remaining = -1;
+        long resetAt = this.updatedAt;
+        long blockedUntil = this.updatedAt;
+
+        Budget(String token, int index) {
+            this.token = token;
+            this.index = index;
+        }
+
+        /**
+         * Refill the bucket, and return the time when a request can be sent.
+         */
+        long availableAt(long now, double maxRequestsPerSecond) {
+            if (this.remaining >= 0 && now - this.resetAt >= 0) {
+                // the remaining points of an elapsed window are unknown until the next response
+                this.remaining = -1;
+            }
+            double rate = maxRequestsPerSecond > 0 ? maxRequestsPerSecond : Double.POSITIVE_INFINITY;
+            if (this.remaining > 0 && this.limit > 0 && this.remaining < this.limit * PACING_THRESHOLD) {
+                rate = Math.min(rate, this.remaining * 1e9 / (this.resetAt - now));
+            }
+            if (Double.isInfinite(rate)) {
+                this.permits = Math.max(this.permits, 1);
+            } else {
+                this.permits = Math.min(Math.max(1, rate), this.permits + (now - this.updatedAt) * rate / 1e9);
+            }
+            this.updatedAt = now;
+            long at = this.permits >= 1 ? now : now + (long) ((1 - this.permits) * 1e9 / rate);
+            return this.blockedUntil - at > 0 ? this.blockedUntil : at;
+        }
+    }
+}
@@ -1,15 +1,28 @@
 package code.commit.gitlab;
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
+import org.springframework.core.io.InputStreamSource;
 import org.springframework.util.Assert;
+import org.springframework.util.StreamUtils;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -24,7 +37,8 @@ import lombok.extern.slf4j.Slf4j;
 public class SourceFilesChangeListBuilder {
     
     private List<String> deletions = new ArrayList<>(0);
-    private Map<String, Path> updates = new HashMap<>();
+    private Map<String, UpdateSource> updates = new HashMap<>();
+    private List<SyncManifest.Staging> manifests = new ArrayList<>(0);
 
     public static SourceFilesChangeListBuilder create() {
         return new SourceFilesChangeListBuilder();
@@ -43,7 +57,7 @@ public class SourceFilesChangeListBuilder {
             sb.append("additions:[");
             this.updates.entrySet().forEach(item -> {
                 sb.append(String.format("{path:\"%s\", contents:\"%s\"}", item.getKey(),
-                        readFileContentWithBase64(item.getValue())));
+                        readContentWithBase64(item.getValue())));
             });
             sb.append("]");
         }
@@ -51,14 +65,162 @@ public class SourceFilesChangeListBuilder {
     }
 
     public long getTotalSizeOfUpdateFiles() {
-        return this.updates.values().stream().map(t -> {
-            try {
-                return Files.size(t);
-            } catch (IOException e) {
-                log.warn("Failed to calculate file size.", e);
+        return this.updates.values().stream().map(SourceFilesChangeListBuilder::sizeOf).reduce(0L, (a,b) -> a+b);
+    }
+
+    /**
+     * @param relativePaths
+     *            the relative paths of some update files
+     * @return the total size of these update files
+     */
+    public long getTotalSizeOfUpdateFiles(Collection<String> relativePaths) {
+        return relativePaths.stream().map(this.updates::get).filter(Objects::nonNull)
+                .map(SourceFilesChangeListBuilder::sizeOf).reduce(0L, (a,b) -> a+b);
+    }
+
+    public boolean isEmpty() {
+        return this.deletions.isEmpty() && this.updates.isEmpty();
+    }
+
+    /**
+     * @param relativePaths
+     *            the relative paths of the excluded update files
+     * @return a new change list without these update files
+     */
+    public SourceFilesChangeListBuilder without(Collection<String> relativePaths) {
+        SourceFilesChangeListBuilder changes = create();
+        changes.deletions.addAll(this.deletions);
+        this.updates.forEach((relativePath, filePath) -> {
+            if (!relativePaths.contains(relativePath)) {
+                changes.updates.put(relativePath, filePath);
+            }
+        });
+        return changes;
+    }
+
+    /**
+     * Split this change list into several smaller ones, whose encoded size is
+     * not larger than <code>maxEncodedSize</code> if possible. The update
+     * files are packed by their encoded size with first-fit decreasing, the
+     * deletions are kept in the first change list. A single file larger than
+     * <code>maxEncodedSize</code> is placed into a change list of its own.
+     * 
+     * @param maxEncodedSize
+     *            the max encoded size of each change list
+     * @return the split change lists, only this change list itself if it is
+     *         small enough
+     */
+    public List<SourceFilesChangeListBuilder> split(long maxEncodedSize) {
+        Assert.isTrue(maxEncodedSize > 0, "The max encoded size must be positive!");
+        List<Map.Entry<String, Long>> files = new ArrayList<>(this.updates.size());
+        long totalSize = 0;
+        for (Map.Entry<String, UpdateSource> item : this.updates.entrySet()) {
+            long encodedSize = getEncodedSizeOfAddition(item.getKey(), sizeOf(item.getValue()));
+            files.add(new SimpleImmutableEntry<>(item.getKey(), encodedSize));
+            totalSize += encodedSize;
+        }
+        long deletionSize = this.deletions.stream().mapToLong(SourceFilesChangeListBuilder::getEncodedSizeOfDeletion)
+                .sum();
+        if (totalSize + deletionSize <= maxEncodedSize) {
+            return Collections.singletonList(this);
+        }
+        files.sort(Collections.reverseOrder(Map.Entry.comparingByValue()));
+
+        List<SourceFilesChangeListBuilder> parts = new ArrayList<>();
+        List<Long> partSizes = new ArrayList<>();
+        if (!this.deletions.isEmpty()) {
+            SourceFilesChangeListBuilder first = create();
+            first.deletions.addAll(this.deletions);
+            parts.add(first);
+            partSizes.add(deletionSize);
+        }
+        for (Map.Entry<String, Long> file : files) {
+            int index = 0;
+            while (index < parts.size() && partSizes.get(index) + file.getValue() > maxEncodedSize) {
+                index++;
+            }
+            if (index == parts.size()) {
+                parts.add(create());
+                partSizes.add(0L);
+                if (file.getValue() > maxEncodedSize) {
+                    log.warn("The file '{}' is larger than the max encoded size of one commit.", file.getKey());
+                }
+            }
+            parts.get(index).updates.put(file.getKey(), this.updates.get(file.getKey()));
+            partSizes.set(index, partSizes.get(index) + file.getValue());
+        }
+        return parts;
+    }
+
+    /**
+     * @return the size of one addition in the json request, including its
+     *         base64 encoded content
+     */
+    static long getEncodedSizeOfAddition(String relativePath, long fileSize) {
+        return String.format("{\"path\":\"%s\",\"contents\":\"\"},", relativePath)
+                .getBytes(StandardCharsets.UTF_8).length + StreamingCommitBody.base64LengthOf(fileSize);
+    }
+
+    static long getEncodedSizeOfDeletion(String relativePath) {
+        return String.format("{\"path\":\"%s\"},", relativePath).getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static long sizeOf(UpdateSource source) {
+        try {
+            return source.size();
+        } catch (GithubRemoteRepositoryOperationException e) {
+            log.warn("Failed to calculate file size.", e);
+        }
+        return 0L;
+    }
+
+    /**
+     * Merge the changes of another change list into this one, the later
+     * change wins on the same path: an update replaces a former update or
+     * deletion, and a deletion replaces a former update.
+     * 
+     * @param other
+     *            the later change list
+     * @return current builder
+     */
+    public SourceFilesChangeListBuilder merge(SourceFilesChangeListBuilder other) {
+        Assert.notNull(other, "The merged change list must not be null!");
+        for (String item : other.deletions) {
+            this.updates.remove(item);
+            if (!this.deletions.contains(item)) {
+                this.deletions.add(item);
             }
-            return 0L;
-        }).reduce(0L, (a,b) -> a+b);
+        }
+        for (Map.Entry<String, UpdateSource> item : other.updates.entrySet()) {
+            this.deletions.remove(item.getKey());
+            this.updates.put(item.getKey(), item.getValue());
+        }
+        this.manifests.addAll(other.manifests);
+        return this;
+    }
+
+    /**
+     * Save the manifests staged by {@link #addDirectory}, which is done by
+     * the commit operation after the commit succeeds.
+     */
+    public void saveManifests() {
+        Map<SyncManifest, List<SyncManifest.Staging>> stagings = new LinkedHashMap<>();
+        for (SyncManifest.Staging staging : this.manifests) {
+            stagings.computeIfAbsent(staging.manifest, k -> new ArrayList<>()).add(staging);
+        }
+        stagings.forEach(SyncManifest::save);
+    }
+
+    boolean hasManifests() {
+        return !this.manifests.isEmpty();
+    }
+
+    List<String> getDeletions() {
+        return this.deletions;
+    }
+
+    Map<String, UpdateSource> getUpdates() {
+        return this.updates;
     }
 
     public String getChangeList() {
@@ -79,19 +241,49 @@ public class SourceFilesChangeListBuilder {
     }
 
     /**
-     * Read file with base64 encoding as String
+     * Compute the oid of the file as a git blob, which is the SHA-1 of
+     * <code>"blob {size}\0{content}"</code>.
      * 
      * @param filePath
-     *            the path of reading file
+     *            the path of the file
+     * @return the hex string of the blob oid
+     */
+    static String computeGitBlobOid(Path filePath) {
+        return computeGitBlobOid(UpdateSource.of(filePath));
+    }
+
+    static String computeGitBlobOid(UpdateSource source) {
+        try (InputStream in = source.openStream()) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(("blob " + source.size() + "\0").getBytes(StandardCharsets.US_ASCII));
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+            StringBuilder sb = new StringBuilder(40);
+            for (byte b : digest.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new GithubRemoteRepositoryOperationException("Failed to read file: " + source, e);
+        }
+    }
+
+    /**
+     * Read content with base64 encoding as String
+     * 
+     * @param source
+     *            the content of the update file
      * @return the base64 encoded string
-     * @throws IOException
      */
-    private String readFileContentWithBase64(Path filePath) {
+    private String readContentWithBase64(UpdateSource source) {
         byte[] fileData;
-        try {
-            fileData = Files.readAllBytes(filePath);
+        try (InputStream in = source.openStream()) {
+            fileData = StreamUtils.copyToByteArray(in);
         } catch (IOException e) {
-            throw new GithubRemoteRepositoryOperationException("Failed to read file: " + filePath);
+            throw new GithubRemoteRepositoryOperationException("Failed to read file: " + source);
         }
         return Base64.getEncoder().encodeToString(fileData);
     }
@@ -128,7 +320,131 @@ public class SourceFilesChangeListBuilder {
         Assert.hasLength(relativePath, "The relative path must not be empty!");
         Assert.notNull(filePath, "The update file must not be null");
         Assert.isTrue(filePath.toFile().exists(), "The update file '" + filePath + "' does not exist!");
-        this.updates.put(relativePath, filePath);
+        this.updates.put(relativePath, UpdateSource.of(filePath));
+        return this;
+    }
+
+    /**
+     * Add a create or update file whose content is in memory.
+     * 
+     * @param content
+     *            the content, which must not be changed any more
+     * @param relativePath
+     *            the relative path of update file.
+     * @return current builder
+     */
+    public SourceFilesChangeListBuilder addUpdateContent(byte[] content, String relativePath) {
+        Assert.notNull(content, "The content must not be null");
+        return addUpdateContent(ByteBuffer.wrap(content), relativePath);
+    }
+
+    /**
+     * Add a create or update file whose content is the remaining bytes of the
+     * buffer, which may be a direct or mapped buffer. The buffer is not copied.
+     * 
+     * @param content
+     *            the content, which must not be changed any more
+     * @param relativePath
+     *            the relative path of update file.
+     * @return current builder
+     */
+    public SourceFilesChangeListBuilder addUpdateContent(ByteBuffer content, String relativePath) {
+        Assert.hasLength(relativePath, "The relative path must not be empty!");
+        Assert.notNull(content, "The content must not be null");
+        this.updates.put(relativePath, UpdateSource.of(content));
+        return this;
+    }
+
+    /**
+     * Add a create or update file whose content is the text encoded with the
+     * charset.
+     * 
+     * @param content
+     *            the text
+     * @param charset
+     *            the charset of the file
+     * @param relativePath
+     *            the relative path of update file.
+     * @return current builder
+     */
+    public SourceFilesChangeListBuilder addUpdateContent(CharSequence content, Charset charset,
+            String relativePath) {
+        Assert.notNull(content, "The content must not be null");
+        Assert.notNull(charset, "The charset must not be null");
+        return addUpdateContent(charset.encode(CharBuffer.wrap(content)), relativePath);
+    }
+
+    /**
+     * Add a create or update file whose content is read from the streams of
+     * the source, every time it is needed. Exactly <code>size</code> bytes
+     * must be read from every stream.
+     * 
+     * @param content
+     *            the source of the streams of the content
+     * @param size
+     *            the size of the content
+     * @param relativePath
+     *            the relative path of update file.
+     * @return current builder
+     */
+    public SourceFilesChangeListBuilder addUpdateContent(InputStreamSource content, long size,
+            String relativePath) {
+        Assert.hasLength(relativePath, "The relative path must not be empty!");
+        Assert.notNull(content, "The content must not be null");
+        Assert.isTrue(size >= 0, "The size must not be negative!");
+        this.updates.put(relativePath, UpdateSource.of(content, size));
+        return this;
+    }
+
+    /**
+     * Add all files of the directory, the same as
+     * {@link #addDirectory(Path, String, Collection, Collection, SyncManifest)}
+     * without globs.
+     */
+    public SourceFilesChangeListBuilder addDirectory(Path root, String prefix, SyncManifest manifest) {
+        return addDirectory(root, prefix, Collections.emptyList(), Collections.emptyList(), manifest);
+    }
+
+    /**
+     * Add the files of the directory which are changed since the last
+     * successful commit recorded in the manifest, and delete the files which
+     * are gone. The directory is walked in parallel, and the unchanged files
+     * are recognized by their size and modified time without reading them.
+     * The new state is staged in this change list, and saved into the
+     * manifest after the commit succeeds.
+     * <p>
+     * e.g: <br>
+     * root: <b>/data/site</b>, prefix: <b>docs</b> <br>
+     * file <b>/data/site/a/b.md</b> ==> relative path: <b>docs/a/b.md</b>
+     * 
+     * @param root
+     *            the local directory
+     * @param prefix
+     *            the relative path of the directory in the repository, empty
+     *            means the root of the repository
+     * @param includes
+     *            the globs of the included files relative to the root, empty
+     *            means all files, e.g. <code>**.java</code>
+     * @param excludes
+     *            the globs of the excluded files and directories relative to
+     *            the root, e.g. <code>target</code>
+     * @param manifest
+     *            the manifest of the last successful commit, null means all
+     *            files are changed
+     * @return current builder
+     */
+    public SourceFilesChangeListBuilder addDirectory(Path root, String prefix, Collection<String> includes,
+            Collection<String> excludes, SyncManifest manifest) {
+        DirectorySync sync = new DirectorySync(root, prefix, includes, excludes, manifest).scan();
+        sync.getDeletions().forEach(this::addDeleteFile);
+        sync.getUpdates().forEach((relativePath, file) -> this.updates.put(relativePath, UpdateSource.of(file)));
+        if (sync.getStaging() != null) {
+            this.manifests.add(sync.getStaging());
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Synced directory {}: {} updates, {} deletions", root, sync.getUpdates().size(),
+                    sync.getDeletions().size());
+        }
         return this;
     }
 }
@@ -0,0 +1,544 @@
+package code.commit.gitlab;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.util.Assert;
+import org.springframework.util.StreamUtils;
+
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonGenerationException;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * The http request body of a commit mutation, which is written to the request
+ * stream directly.
+ * <p>
+ * The body is the static mutation and its <code>input</code> variable. The
+ * content of every update file is read and encoded with base64 while
+ * writing, so neither the raw file nor the encoded request is held in memory.
+ * The exact content length is computed up front from the file sizes.
+ * <p>
+ * With an executor, the files are read and encoded in parallel ahead of the
+ * writing by a {@link ParallelBase64Encoder}. With an
+ * {@link EncodedContentCache}, the cached contents are written without
+ * reading the files, and the encoded contents of the other files are cached.
+ * <p>
+ * With an {@link UpdateFileIterator}, its files are added after the update
+ * files while writing. The length of the body is unknown then, and the body
+ * can only be written once.
+ * <p>
+ * A body which is retained is kept in memory while writing, to be sent again
+ * with another expected head oid without reading the files, see
+ * {@link #withExpectedHeadOid(String)}.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+class StreamingCommitBody implements GraphqlRequestBody {
+
+    private final String query;
+    private final String repoNameWithOwner;
+    private final String branch;
+    private final String expectedHeadOid;
+    private final String headline;
+    private final String body;
+    private final List<String> deletions;
+    private final List<String> updatePaths = new ArrayList<>();
+    private final List<UpdateSource> updateFiles = new ArrayList<>();
+    private final List<Long> updateSizes = new ArrayList<>();
+    private final long contentLength;
+    private Executor encodeExecutor;
+    private long maxInFlightBytes;
+    private EncodedContentCache contentCache;
+    private final LongAdder readNanos = new LongAdder();
+    private UpdateFileIterator streamedFiles;
+    private long maxRetainedBytes = -1;
+    private RetainedCommitBody retained;
+
+    StreamingCommitBody(String query, String repoNameWithOwner, String branch, String expectedHeadOid,
+            String headline, String body, SourceFilesChangeListBuilder changes) {
+        this.query = query;
+        this.repoNameWithOwner = repoNameWithOwner;
+        this.branch = branch;
+        this.expectedHeadOid = expectedHeadOid;
+        this.headline = headline;
+        this.body = body;
+        this.deletions = new ArrayList<>(changes.getDeletions());
+        for (Map.Entry<String, UpdateSource> item : changes.getUpdates().entrySet()) {
+            this.updatePaths.add(item.getKey());
+            this.updateFiles.add(item.getValue());
+            this.updateSizes.add(item.getValue().size());
+        }
+        this.contentLength = computeContentLength();
+    }
+
+    /**
+     * Encode the files on the executor, with at most
+     * <code>maxInFlightBytes</code> of encoded contents ahead of the writing.
+     */
+    StreamingCommitBody encodeWith(Executor executor, long maxInFlightBytes) {
+        this.encodeExecutor = executor;
+        this.maxInFlightBytes = maxInFlightBytes;
+        return this;
+    }
+
+    /**
+     * Write the cached contents of the files, and cache the others.
+     */
+    StreamingCommitBody cacheWith(EncodedContentCache cache) {
+        this.contentCache = cache;
+        return this;
+    }
+
+    /**
+     * Add the files of the iterator while writing.
+     */
+    StreamingCommitBody streamFrom(UpdateFileIterator files) {
+        this.streamedFiles = files;
+        return this;
+    }
+
+    /**
+     * Keep the written body in memory if it is not larger than
+     * <code>maxBytes</code>.
+     */
+    StreamingCommitBody retainUpTo(long maxBytes) {
+        this.maxRetainedBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * @return the body written last time with another expected head oid, or
+     *         null if it has not been retained
+     */
+    RetainedCommitBody withExpectedHeadOid(String expectedHeadOid) {
+        return this.retained == null ? null : this.retained.withExpectedHeadOid(expectedHeadOid);
+    }
+
+    /**
+     * @return the time of reading the files, summed over the encoding threads
+     */
+    long getReadNanos() {
+        return this.readNanos.sum();
+    }
+
+    boolean isEncodedInParallel() {
+        return this.encodeExecutor != null;
+    }
+
+    @Override
+    public long getContentLength() {
+        return this.streamedFiles != null ? -1 : this.contentLength;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return this.streamedFiles == null;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        RetainingOutputStream retaining = null;
+        if (this.streamedFiles == null
+                && this.contentLength <= Math.min(this.maxRetainedBytes, Integer.MAX_VALUE)) {
+            retaining = new RetainingOutputStream(out, (int) this.contentLength);
+            out = retaining;
+        }
+        CachedContents cached = this.contentCache == null ? null : lookupCache();
+        List<UpdateSource> encodedFiles = new ArrayList<>();
+        List<Long> encodedSizes = new ArrayList<>();
+        for (int i = 0; i < this.updateFiles.size(); i++) {
+            if ((cached == null || cached.contents[i] == null) && isEncodedInChunks(this.updateFiles.get(i))) {
+                encodedFiles.add(this.updateFiles.get(i));
+                encodedSizes.add(this.updateSizes.get(i));
+            }
+        }
+        if (this.encodeExecutor == null || encodedFiles.isEmpty()) {
+            write(out, true, null, cached);
+        } else {
+            try (ParallelBase64Encoder encoder = new ParallelBase64Encoder(encodedFiles, encodedSizes,
+                    this.encodeExecutor, this.maxInFlightBytes, this.readNanos)) {
+                write(out, true, encoder, cached);
+            }
+        }
+        if (retaining != null) {
+            this.retained = retaining.toBody(this.expectedHeadOid);
+        }
+    }
+
+    /**
+     * The length is counted by writing the body without the file contents,
+     * plus the base64 length of every file.
+     */
+    private long computeContentLength() {
+        CountingOutputStream out = new CountingOutputStream();
+        try {
+            write(out, false, null, null);
+        } catch (IOException e) {
+            throw new GithubRemoteRepositoryOperationException("Failed to write commit request", e);
+        }
+        long length = out.count;
+        for (Long size : this.updateSizes) {
+            length += base64LengthOf(size);
+        }
+        return length;
+    }
+
+    /**
+     * Whether the source is read at any position, so it is encoded in chunks
+     * by the parallel encoder, while a stream is encoded by the writer.
+     */
+    private static boolean isEncodedInChunks(UpdateSource source) {
+        return source.getFile() != null || source.getBuffer() != null;
+    }
+
+    /**
+     * Look up the update files in the cache by their current size and
+     * modified time, the contents in memory are not cached.
+     */
+    private CachedContents lookupCache() throws IOException {
+        CachedContents cached = new CachedContents(this.updateFiles.size());
+        for (int i = 0; i < this.updateFiles.size(); i++) {
+            Path file = this.updateFiles.get(i).getFile();
+            if (file == null) {
+                continue;
+            }
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            if (attrs.size() != this.updateSizes.get(i)) {
+                throw new GithubRemoteRepositoryOperationException(
+                        "The file has been changed while committing: " + file);
+            }
+            cached.modifiedNanos[i] = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+            cached.contents[i] = this.contentCache.get(file, attrs.size(), cached.modifiedNanos[i]);
+        }
+        return cached;
+    }
+
+    private void write(OutputStream out, boolean withContents, ParallelBase64Encoder encoder,
+            CachedContents cached) throws IOException {
+        try (JsonGenerator g = GraphqlJson.createGenerator(out)) {
+            g.writeStartObject();
+            g.writeStringField("query", this.query);
+            g.writeObjectFieldStart("variables");
+            g.writeObjectFieldStart("input");
+            g.writeObjectFieldStart("branch");
+            g.writeStringField("repositoryNameWithOwner", this.repoNameWithOwner);
+            g.writeStringField("branchName", this.branch);
+            g.writeEndObject();
+            g.writeObjectFieldStart("message");
+            g.writeStringField("headline", this.headline);
+            g.writeStringField("body", this.body);
+            g.writeEndObject();
+            markHeadOid(g, out);
+            g.writeStringField("expectedHeadOid", this.expectedHeadOid);
+            markHeadOid(g, out);
+            g.writeObjectFieldStart("fileChanges");
+            if (!this.deletions.isEmpty()) {
+                g.writeArrayFieldStart("deletions");
+                for (String item : this.deletions) {
+                    g.writeStartObject();
+                    g.writeStringField("path", item);
+                    g.writeEndObject();
+                }
+                g.writeEndArray();
+            }
+            if (!this.updatePaths.isEmpty() || withContents && this.streamedFiles != null) {
+                g.writeArrayFieldStart("additions");
+                for (int i = 0; i < this.updatePaths.size(); i++) {
+                    g.writeStartObject();
+                    g.writeStringField("path", this.updatePaths.get(i));
+                    g.writeFieldName("contents");
+                    if (!withContents) {
+                        g.writeString("");
+                    } else if (encoder != null || cached != null) {
+                        // the encoded contents go to the stream directly, between the quotes
+                        g.writeRawValue("\"");
+                        g.flush();
+                        writeEncodedContent(out, i, encoder, cached);
+                        g.writeRaw('"');
+                    } else {
+                        writeFileContentWithBase64(g, this.updateFiles.get(i), this.updateSizes.get(i));
+                    }
+                    g.writeEndObject();
+                }
+                if (withContents && this.streamedFiles != null) {
+                    writeStreamedFiles(g);
+                }
+                g.writeEndArray();
+            }
+            g.writeEndObject();
+            g.writeEndObject();
+            g.writeEndObject();
+            g.writeEndObject();
+        }
+    }
+
+    /**
+     * Write the cached contents of the file, or encode it and cache the
+     * contents if it is cacheable.
+     */
+    private void writeEncodedContent(OutputStream out, int i, ParallelBase64Encoder encoder, CachedContents cached)
+            throws IOException {
+        UpdateSource source = this.updateFiles.get(i);
+        Path file = source.getFile();
+        long size = this.updateSizes.get(i);
+        if (cached != null && cached.contents[i] != null) {
+            Channels.newChannel(out).write(cached.contents[i]);
+            return;
+        }
+        boolean cacheable = cached != null && file != null && this.contentCache.isCacheable(size);
+        ByteBuffer encoded;
+        if (encoder != null && isEncodedInChunks(source)) {
+            encoded = cacheable ? ByteBuffer.allocateDirect((int) base64LengthOf(size)) : null;
+            encoder.writeNext(out, encoded);
+        } else if (cacheable) {
+            long start = System.nanoTime();
+            byte[] data = Files.readAllBytes(file);
+            this.readNanos.add(System.nanoTime() - start);
+            if (data.length != size) {
+                throw new GithubRemoteRepositoryOperationException(
+                        "The file has been changed while committing: " + file);
+            }
+            byte[] encodedData = Base64.getEncoder().encode(data);
+            out.write(encodedData);
+            encoded = ByteBuffer.allocateDirect(encodedData.length).put(encodedData);
+        } else {
+            try (InputStream in = new TimedInputStream(source.openStream(), this.readNanos);
+                    OutputStream encoding = Base64.getEncoder().wrap(StreamUtils.nonClosing(out))) {
+                if (StreamUtils.copyRange(in, encoding, 0, size - 1) != size || in.read() != -1) {
+                    throw new GithubRemoteRepositoryOperationException(
+                            "The file has been changed while committing: " + source);
+                }
+            }
+            encoded = null;
+        }
+        if (encoded != null) {
+            encoded.flip();
+            this.contentCache.put(file, size, cached.modifiedNanos[i], encoded);
+        }
+    }
+
+    /**
+     * Stream the file through the base64 encoder of the generator, exactly
+     * <code>size</code> bytes are read so that the precomputed content length
+     * holds.
+     */
+    private void writeFileContentWithBase64(JsonGenerator g, UpdateSource source, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new GithubRemoteRepositoryOperationException("The file is too large: " + source);
+        }
+        try (InputStream in = new TimedInputStream(source.openStream(), this.readNanos)) {
+            try {
+                g.writeBinary(Base64Variants.MIME_NO_LINEFEEDS, in, (int) size);
+            } catch (JsonGenerationException e) {
+                throw new GithubRemoteRepositoryOperationException(
+                        "The file has been changed while committing: " + source, e);
+            }
+            if (in.read() != -1) {
+                throw new GithubRemoteRepositoryOperationException(
+                        "The file has been changed while committing: " + source);
+            }
+        }
+    }
+
+    private void writeStreamedFiles(JsonGenerator g) throws IOException {
+        while (this.streamedFiles.next()) {
+            String relativePath = this.streamedFiles.getRelativePath();
+            Assert.hasLength(relativePath, "The relative path must not be empty!");
+            g.writeStartObject();
+            g.writeStringField("path", relativePath);
+            g.writeFieldName("contents");
+            try (InputStream in = new TimedInputStream(this.streamedFiles.openStream(), this.readNanos)) {
+                g.writeBinary(Base64Variants.MIME_NO_LINEFEEDS, in, -1);
+            }
+            g.writeEndObject();
+        }
+    }
+
+    /**
+     * Mark the bounds of the expected head oid in the retained body.
+     */
+    private static void markHeadOid(JsonGenerator g, OutputStream out) throws IOException {
+        if (out instanceof RetainingOutputStream) {
+            g.flush();
+            ((RetainingOutputStream) out).mark();
+        }
+    }
+
+    static long base64LengthOf(long size) {
+        return 4 * ((size + 2) / 3);
+    }
+
+    private static class TimedInputStream extends FilterInputStream {
+        private final LongAdder nanos;
+
+        TimedInputStream(InputStream in, LongAdder nanos) {
+            super(in);
+            this.nanos = nanos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.read();
+            } finally {
+                this.nanos.add(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.read(b, off, len);
+            } finally {
+                this.nanos.add(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * The cached contents of the update files, null if absent, looked up
+     * before writing.
+     */
+    private static class CachedContents {
+        final ByteBuffer[] contents;
+        final long[] modifiedNanos;
+
+        CachedContents(int count) {
+            this.contents = new ByteBuffer[count];
+            this.modifiedNanos = new long[count];
+        }
+    }
+
+    /**
+     * The body written by a {@link StreamingCommitBody}, in memory. The part
+     * around the expected head oid is written again for another oid, the rest
+     * is shared by all the bodies.
+     */
+    static class RetainedCommitBody implements GraphqlRequestBody {
+        private final byte[] data;
+        private final int headOidStart;
+        private final int headOidEnd;
+        private final String writtenHeadOid;
+        private final byte[] headOidPart;
+
+        private RetainedCommitBody(byte[] data, int headOidStart, int headOidEnd, String writtenHeadOid,
+                byte[] headOidPart) {
+            this.data = data;
+            this.headOidStart = headOidStart;
+            this.headOidEnd = headOidEnd;
+            this.writtenHeadOid = writtenHeadOid;
+            this.headOidPart = headOidPart;
+        }
+
+        /**
+         * @param expectedHeadOid
+         *            a hex oid, which needs no escaping
+         */
+        RetainedCommitBody withExpectedHeadOid(String expectedHeadOid) {
+            Assert.isTrue(expectedHeadOid.chars().allMatch(c -> Character.digit(c, 16) >= 0),
+                    "The expected head oid must be hex: " + expectedHeadOid);
+            String part = new String(this.data, this.headOidStart, this.headOidEnd - this.headOidStart,
+                    StandardCharsets.US_ASCII);
+            return new RetainedCommitBody(this.data, this.headOidStart, this.headOidEnd, this.writtenHeadOid,
+                    part.replace(this.writtenHeadOid, expectedHeadOid).getBytes(StandardCharsets.US_ASCII));
+        }
+
+        @Override
+        public long getContentLength() {
+            return this.data.length - (this.headOidEnd - this.headOidStart) + this.headOidPart.length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(this.data, 0, this.headOidStart);
+            out.write(this.headOidPart);
+            out.write(this.data, this.headOidEnd, this.data.length - this.headOidEnd);
+        }
+    }
+
+    /**
+     * Copy the written bytes into an array of the content length.
+     */
+    private static class RetainingOutputStream extends FilterOutputStream {
+        private final byte[] data;
+        private int count;
+        private final int[] marks = new int[2];
+        private int markCount;
+
+        RetainingOutputStream(OutputStream out, int length) {
+            super(out);
+            this.data = new byte[length];
+        }
+
+        void mark() {
+            this.marks[this.markCount++] = this.count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            ensureCapacity(1);
+            this.data[this.count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            ensureCapacity(len);
+            System.arraycopy(b, off, this.data, this.count, len);
+            this.count += len;
+        }
+
+        private void ensureCapacity(int len) {
+            if (this.count + len > this.data.length) {
+                throw new GithubRemoteRepositoryOperationException(
+                        "The length of the commit request has been changed while writing!");
+            }
+        }
+
+        RetainedCommitBody toBody(String writtenHeadOid) {
+            if (this.count != this.data.length) {
+                throw new GithubRemoteRepositoryOperationException(
+                        "The length of the commit request has been changed while writing!");
+            }
+            return new RetainedCommitBody(this.data, this.marks[0], this.marks[1], writtenHeadOid,
+                    Arrays.copyOfRange(this.data, this.marks[0], this.marks[1]));
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            this.count += len;
+        }
+    }
+}
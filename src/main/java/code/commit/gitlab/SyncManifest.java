@@ -0,0 +1,179 @@
+package code.commit.gitlab;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.springframework.util.Assert;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The local index of the files committed by
+ * {@link SourceFilesChangeListBuilder#addDirectory}, which keeps the size,
+ * the modified time and the git blob oid of every file by its relative path
+ * in the repository.
+ * <p>
+ * A directory sync stages the new index in its change list, which is only
+ * saved after the commit succeeds, by writing a temporary file and moving it over the manifest
+ * atomically. One line per file:
+ * <p>
+ * <b>{oid} {size} {modified nanos} {relative path}</b>
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+@Slf4j
+public class SyncManifest {
+
+    private final Path file;
+    private Map<String, Entry> entries;
+
+    private SyncManifest(Path file, Map<String, Entry> entries) {
+        this.file = file;
+        this.entries = entries;
+    }
+
+    /**
+     * @param file
+     *            the manifest file, which is created on the first save
+     * @return the manifest, empty if the file does not exist
+     */
+    public static SyncManifest load(Path file) {
+        Assert.notNull(file, "The manifest file must not be null!");
+        Map<String, Entry> entries = new HashMap<>();
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(" ", 4);
+                    if (fields.length < 4) {
+                        continue;
+                    }
+                    entries.put(fields[3],
+                            new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+                }
+            } catch (IOException | NumberFormatException e) {
+                throw new GithubRemoteRepositoryOperationException("Failed to load manifest: " + file, e);
+            }
+        }
+        return new SyncManifest(file, entries);
+    }
+
+    /**
+     * @return the entry of the last successful commit, or null
+     */
+    public synchronized Entry get(String relativePath) {
+        return this.entries.get(relativePath);
+    }
+
+    public synchronized Map<String, Entry> getEntries() {
+        return Collections.unmodifiableMap(this.entries);
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Stage the entries of a directory sync, which replace the entries of the
+     * removed paths once saved. The staging is kept by the change list rather
+     * than the manifest, so the staging of a failed commit is dropped with it.
+     */
+    Staging stage(Map<String, Entry> scanned, Collection<String> removed) {
+        return new Staging(this, scanned, removed);
+    }
+
+    /**
+     * Apply the stagings to the saved entries in order, and save the result
+     * atomically.
+     */
+    synchronized void save(List<Staging> stagings) {
+        Map<String, Entry> next = new HashMap<>(this.entries);
+        for (Staging staging : stagings) {
+            staging.removed.forEach(next::remove);
+            next.putAll(staging.scanned);
+        }
+        Path parent = this.file.toAbsolutePath().getParent();
+        Path tmp = parent.resolve(this.file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(parent);
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), 64 * 1024);
+                for (Map.Entry<String, Entry> item : new TreeMap<>(next).entrySet()) {
+                    // a path with a line break can not be indexed, it is compared by content every time
+                    if (item.getKey().indexOf('\n') >= 0 || item.getKey().indexOf('\r') >= 0) {
+                        continue;
+                    }
+                    Entry entry = item.getValue();
+                    writer.write(entry.oid + " " + entry.size + " " + entry.modifiedNanos + " " + item.getKey() + "\n");
+                }
+                writer.flush();
+                channel.force(true);
+            }
+            Files.move(tmp, this.file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new GithubRemoteRepositoryOperationException("Failed to save manifest: " + this.file, e);
+        }
+        this.entries = next;
+        log.debug("Saved manifest of {} files: {}", this.entries.size(), this.file);
+    }
+
+    /**
+     * The entries of a directory sync, staged by the change list until it is
+     * committed.
+     */
+    static class Staging {
+        final SyncManifest manifest;
+        final Map<String, Entry> scanned;
+        final Collection<String> removed;
+
+        Staging(SyncManifest manifest, Map<String, Entry> scanned, Collection<String> removed) {
+            this.manifest = manifest;
+            this.scanned = scanned;
+            this.removed = removed;
+        }
+    }
+
+    /**
+     * The indexed state of a file.
+     */
+    public static class Entry {
+        final String oid;
+        final long size;
+        final long modifiedNanos;
+
+        Entry(String oid, long size, long modifiedNanos) {
+            this.oid = oid;
+            this.size = size;
+            this.modifiedNanos = modifiedNanos;
+        }
+
+        public String getOid() {
+            return this.oid;
+        }
+
+        public long getSize() {
+            return this.size;
+        }
+
+        public long getModifiedNanos() {
+            return this.modifiedNanos;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package code.commit.gitlab;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The update files which are read one after another, only once, e.g. the file
+ * parts of a multipart request.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+public interface UpdateFileIterator {
+
+    /**
+     * Move to the next file, the content of the former file can not be read
+     * any more.
+     *
+     * @return false if there are no more files
+     * @throws IOException
+     */
+    boolean next() throws IOException;
+
+    /**
+     * @return the relative path of the current file in the repository
+     */
+    String getRelativePath();
+
+    /**
+     * @return the content of the current file
+     * @throws IOException
+     */
+    InputStream openStream() throws IOException;
+}
@@ -0,0 +1,157 @@
+package code.commit.gitlab;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.springframework.core.io.InputStreamSource;
+
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+/**
+ * The content of an update file: a local file, a buffer in memory, or a
+ * stream of a known size.
+ * <p>
+ * A file or a buffer can be read at any position, so it is encoded in chunks
+ * in parallel, a stream is read from the start every time.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+abstract class UpdateSource {
+
+    /**
+     * @return the size of the content
+     */
+    abstract long size();
+
+    /**
+     * @return a new stream of the content
+     */
+    abstract InputStream openStream() throws IOException;
+
+    /**
+     * @return the local file, or null if the content is not a file
+     */
+    Path getFile() {
+        return null;
+    }
+
+    /**
+     * @return a read-only buffer of the content, or null if the content is
+     *         not in memory
+     */
+    ByteBuffer getBuffer() {
+        return null;
+    }
+
+    static UpdateSource of(Path file) {
+        return new FileSource(file);
+    }
+
+    /**
+     * @param content
+     *            the remaining bytes are the content, which must not be
+     *            changed any more
+     */
+    static UpdateSource of(ByteBuffer content) {
+        return new BufferSource(content.slice());
+    }
+
+    static UpdateSource of(InputStreamSource content, long size) {
+        return new StreamSource(content, size);
+    }
+
+    private static class FileSource extends UpdateSource {
+        private final Path file;
+
+        FileSource(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        long size() {
+            try {
+                return Files.size(this.file);
+            } catch (IOException e) {
+                throw new GithubRemoteRepositoryOperationException("Failed to read file: " + this.file, e);
+            }
+        }
+
+        @Override
+        InputStream openStream() throws IOException {
+            return Files.newInputStream(this.file);
+        }
+
+        @Override
+        Path getFile() {
+            return this.file;
+        }
+
+        @Override
+        public String toString() {
+            return this.file.toString();
+        }
+    }
+
+    private static class BufferSource extends UpdateSource {
+        private final ByteBuffer content;
+
+        BufferSource(ByteBuffer content) {
+            this.content = content;
+        }
+
+        @Override
+        long size() {
+            return this.content.remaining();
+        }
+
+        @Override
+        InputStream openStream() {
+            if (this.content.hasArray()) {
+                return new ByteArrayInputStream(this.content.array(),
+                        this.content.arrayOffset() + this.content.position(), this.content.remaining());
+            }
+            return new ByteBufferBackedInputStream(this.content.asReadOnlyBuffer());
+        }
+
+        @Override
+        ByteBuffer getBuffer() {
+            return this.content.asReadOnlyBuffer();
+        }
+
+        @Override
+        public String toString() {
+            return "buffer of " + this.content.remaining() + " bytes";
+        }
+    }
+
+    private static class StreamSource extends UpdateSource {
+        private final InputStreamSource content;
+        private final long size;
+
+        StreamSource(InputStreamSource content, long size) {
+            this.content = content;
+            this.size = size;
+        }
+
+        @Override
+        long size() {
+            return this.size;
+        }
+
+        @Override
+        InputStream openStream() throws IOException {
+            return this.content.getInputStream();
+        }
+
+        @Override
+        public String toString() {
+            return "stream of " + this.size + " bytes";
+        }
+    }
+}
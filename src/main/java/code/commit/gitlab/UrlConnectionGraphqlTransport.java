@@ -0,0 +1,95 @@
+package code.commit.gitlab;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.springframework.util.Assert;
+import org.springframework.util.StreamUtils;
+
+/**
+ * The http transport of graphql requests on the JDK
+ * <code>HttpURLConnection</code> alone, without the rest template and its
+ * message converters, e.g. for {@link CommitBatchCommand} whose jvm lives for
+ * a few commits. The connections are kept alive by the JDK, and the request
+ * body is streamed the same as {@link HttpGraphqlTransport}.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+public class UrlConnectionGraphqlTransport implements GraphqlTransport {
+
+    private final URL endpoint;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final boolean gzipRequest;
+
+    /**
+     * @param options
+     *            the endpoint and timeouts of the transport, the connection
+     *            pool is ignored
+     */
+    public UrlConnectionGraphqlTransport(GithubCommitOptions options) {
+        Assert.hasLength(options.getEndpoint(), "The endpoint must not be empty!");
+        try {
+            this.endpoint = new URL(options.getEndpoint());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid endpoint: " + options.getEndpoint(), e);
+        }
+        this.connectTimeout = (int) options.getConnectTimeout().toMillis();
+        this.readTimeout = (int) options.getReadTimeout().toMillis();
+        this.gzipRequest = options.isGzipRequest();
+    }
+
+    @Override
+    public GraphqlResponse post(String userToken, GraphqlRequestBody body) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) this.endpoint.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(this.connectTimeout);
+            connection.setReadTimeout(this.readTimeout);
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty("Authorization", "Bearer " + userToken);
+            if (this.gzipRequest) {
+                connection.setRequestProperty("Content-Encoding", "gzip");
+                connection.setChunkedStreamingMode(0);
+            } else if (body.getContentLength() >= 0) {
+                connection.setFixedLengthStreamingMode(body.getContentLength());
+            } else {
+                connection.setChunkedStreamingMode(0);
+            }
+            try (OutputStream out = connection.getOutputStream()) {
+                if (this.gzipRequest) {
+                    GZIPOutputStream gzip = new GZIPOutputStream(StreamUtils.nonClosing(out));
+                    body.writeTo(gzip);
+                    gzip.close();
+                } else {
+                    body.writeTo(out);
+                }
+            }
+            int statusCode = connection.getResponseCode();
+            Map<String, List<String>> headers = connection.getHeaderFields();
+            // the response is read to the end, so the connection is kept alive
+            InputStream in = statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            String responseBody = "";
+            if (in != null) {
+                try {
+                    responseBody = StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+                } finally {
+                    in.close();
+                }
+            }
+            return new GraphqlResponse().setStatusCode(statusCode).setHeaders(headers).setBody(responseBody);
+        } catch (IOException e) {
+            throw new GithubRemoteRepositoryOperationException("Failed to post to " + this.endpoint, e);
+        }
+    }
+}
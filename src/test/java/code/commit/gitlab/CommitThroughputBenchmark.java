@@ -0,0 +1,145 @@
+package code.commit.gitlab;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The end-to-end throughput of {@link GithubCommitOperation} against a
+ * {@link FakeGithubGraphqlServer}, at varying file counts and sizes. It
+ * reports commits per second, p50/p99 latency and the bytes allocated by the
+ * committing thread per commit.
+ * <p>
+ * Run with <code>gradlew benchmark</code>, it is excluded from
+ * <code>gradlew test</code>.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+@Tag("benchmark")
+class CommitThroughputBenchmark {
+
+    static final int WARMUP_COMMITS = 20;
+    static final int MEASURED_COMMITS = 100;
+    static final int[] FILE_COUNTS = { 1, 10, 100 };
+    static final int[] FILE_SIZES = { 1024, 64 * 1024, 1024 * 1024 };
+
+    @TempDir
+    Path dir;
+
+    FakeGithubGraphqlServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = new FakeGithubGraphqlServer();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.close();
+    }
+
+    @Test
+    @DisplayName("Sequential commits by file count and size")
+    void sequentialCommits() throws IOException {
+        GithubCommitOperation action = new GithubCommitOperation(
+                new GithubCommitOptions().setEndpoint(server.getEndpoint()));
+        System.out.println(String.format("%6s %10s %10s %10s %10s %14s", "files", "size", "commits/s", "p50(ms)",
+                "p99(ms)", "alloc/commit"));
+        for (int fileCount : FILE_COUNTS) {
+            for (int fileSize : FILE_SIZES) {
+                if ((long) fileCount * fileSize > 32L * 1024 * 1024) {
+                    continue;
+                }
+                SourceFilesChangeListBuilder changes = createChanges(fileCount, fileSize);
+                run(action, changes, WARMUP_COMMITS);
+                long allocated = allocatedBytes();
+                long start = System.nanoTime();
+                long[] latencies = run(action, changes, MEASURED_COMMITS);
+                long elapsed = System.nanoTime() - start;
+                allocated = allocatedBytes() - allocated;
+                Arrays.sort(latencies);
+                System.out.println(String.format("%6d %10d %10.1f %10.2f %10.2f %14d", fileCount, fileSize,
+                        MEASURED_COMMITS * 1e9 / elapsed, percentile(latencies, 50) / 1e6,
+                        percentile(latencies, 99) / 1e6, allocated / MEASURED_COMMITS));
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Concurrent commits to many repositories")
+    void concurrentCommits() throws IOException {
+        server.setLatency(Duration.ofMillis(20));
+        GithubCommitOperation delegate = new GithubCommitOperation(
+                new GithubCommitOptions().setEndpoint(server.getEndpoint()).setMaxConnections(64));
+        AsyncCommitOperation action = new AsyncCommitOperation(delegate, 32);
+        SourceFilesChangeListBuilder changes = createChanges(10, 16 * 1024);
+        List<CommitInput> inputs = new ArrayList<>();
+        for (int i = 0; i < 256; i++) {
+            inputs.add(input("repo-" + i, changes));
+        }
+        long start = System.nanoTime();
+        CompletableFuture.allOf(action.submitAll(inputs).toArray(new CompletableFuture<?>[0])).join();
+        long elapsed = System.nanoTime() - start;
+        action.shutdown();
+        System.out.println(String.format("%d repositories with 20ms latency: %.1f commits/s", inputs.size(),
+                inputs.size() * 1e9 / elapsed));
+    }
+
+    private long[] run(GithubCommitOperation action, SourceFilesChangeListBuilder changes, int commits) {
+        long[] latencies = new long[commits];
+        for (int i = 0; i < commits; i++) {
+            long start = System.nanoTime();
+            action.commit(input("demo", changes));
+            latencies[i] = System.nanoTime() - start;
+        }
+        return latencies;
+    }
+
+    private SourceFilesChangeListBuilder createChanges(int fileCount, int fileSize) throws IOException {
+        Random random = new Random(fileCount * 31L + fileSize);
+        SourceFilesChangeListBuilder changes = SourceFilesChangeListBuilder.create();
+        for (int i = 0; i < fileCount; i++) {
+            byte[] data = new byte[fileSize];
+            random.nextBytes(data);
+            Path file = Files.write(dir.resolve(fileCount + "-" + fileSize + "-" + i + ".bin"), data);
+            changes.addUpdateFile(file, "bench/f" + i + ".bin");
+        }
+        return changes;
+    }
+
+    private CommitInput input(String repoName, SourceFilesChangeListBuilder changes) {
+        return new CommitInput()
+                    .setBranch("bench")
+                    .setOwner("zhwlin")
+                    .setRepoName(repoName)
+                    .setUserToken("token")
+                    .setCommitMsgHeader("Benchmark")
+                    .setCommitMsgBody("")
+                    .setChangeList(changes);
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * p / 100)];
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
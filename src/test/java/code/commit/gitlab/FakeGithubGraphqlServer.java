@@ -0,0 +1,499 @@
+package code.commit.gitlab;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.springframework.util.StreamUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in of the github graphql api, which serves the head
+ * lookup, the blob lookup and the <code>createCommitOnBranch</code> mutation
+ * of {@link GithubCommitOperation}.
+ * <p>
+ * Every branch is created with a random head on its first use. A commit is
+ * rejected as stale if its expected head oid is not the head of the branch.
+ * The latency and the rate of failed requests can be configured.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+class FakeGithubGraphqlServer implements AutoCloseable {
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final int MAX_KEPT_COMMITS = 4;
+    private static final Pattern REF_FIELD = Pattern.compile(
+            "(?:(\\w+): )?repository\\(owner: \\$(\\w+), name: \\$(\\w+)\\)"
+            + "|(?:(\\w+): )?ref\\(qualifiedName: \\$(\\w+)\\)");
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, Branch> branches = new ConcurrentHashMap<>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong commitCount = new AtomicLong();
+    private final AtomicLong staleCount = new AtomicLong();
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private final AtomicLong rateLimitedCount = new AtomicLong();
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+    private volatile Duration latency = Duration.ZERO;
+    private volatile double failureRate;
+    private volatile int rateLimit;
+    private volatile Duration rateLimitWindow;
+    private final AtomicLong contendedCommits = new AtomicLong();
+    private volatile Map<String, byte[]> contendedFiles = Collections.emptyMap();
+    private volatile String rejectedHeadline;
+    private final AtomicInteger concurrentCommits = new AtomicInteger();
+    private final AtomicInteger maxConcurrentCommits = new AtomicInteger();
+
+    FakeGithubGraphqlServer() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/graphql", this::handle);
+        this.server.start();
+    }
+
+    String getEndpoint() {
+        return "http://localhost:" + this.server.getAddress().getPort() + "/graphql";
+    }
+
+    /**
+     * @param latency
+     *            the delay of every response
+     */
+    void setLatency(Duration latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @param failureRate
+     *            the rate of requests failed with http status 502
+     */
+    void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * Limit the requests of every token, the requests beyond the limit are
+     * rejected with http status 403 until the window is reset.
+     *
+     * @param limit
+     *            the max number of requests in a window, 0 means unlimited
+     */
+    void setRateLimit(int limit, Duration window) {
+        this.rateLimit = limit;
+        this.rateLimitWindow = window;
+    }
+
+    /**
+     * Move the head of the branch as if another writer committed to it.
+     *
+     * @return the new head oid
+     */
+    String moveHead(String owner, String repoName, String branch) {
+        Branch b = branchOf(owner + "/" + repoName, branch);
+        synchronized (b) {
+            b.head = newOid();
+            b.commits.put(b.head, new HashMap<>(b.files));
+            return b.head;
+        }
+    }
+
+    /**
+     * Move the branch right before each of the next commits, as if another
+     * writer won the race.
+     */
+    void contendNextCommits(int count) {
+        contendNextCommits(count, Collections.emptyMap());
+    }
+
+    /**
+     * Move the branch right before each of the next commits, as if another
+     * writer won the race with the files.
+     */
+    void contendNextCommits(int count, Map<String, byte[]> files) {
+        this.contendedFiles = files;
+        this.contendedCommits.set(count);
+    }
+
+    /**
+     * Reject the commits of the headline with a graphql error every time,
+     * e.g. as if the token can not write to the branch.
+     */
+    void rejectCommits(String headline) {
+        this.rejectedHeadline = headline;
+    }
+
+    /**
+     * Commit the file as another writer.
+     *
+     * @return the new head oid
+     */
+    String commitFile(String owner, String repoName, String branch, String path, byte[] content) {
+        Branch b = branchOf(owner + "/" + repoName, branch);
+        synchronized (b) {
+            b.files.put(path, content);
+            b.head = newOid();
+            b.commits.put(b.head, new HashMap<>(b.files));
+            return b.head;
+        }
+    }
+
+    String getHead(String owner, String repoName, String branch) {
+        return branchOf(owner + "/" + repoName, branch).head;
+    }
+
+    /**
+     * @return the content of the file on the head of the branch, or null
+     */
+    byte[] getFile(String owner, String repoName, String branch, String path) {
+        return branchOf(owner + "/" + repoName, branch).files.get(path);
+    }
+
+    /**
+     * @return the headlines of the commits on the branch, in the order of
+     *         committing
+     */
+    List<String> getHeadlines(String owner, String repoName, String branch) {
+        Branch b = branchOf(owner + "/" + repoName, branch);
+        synchronized (b) {
+            return new ArrayList<>(b.headlines);
+        }
+    }
+
+    /**
+     * @return the max number of commit mutations received at the same time
+     */
+    int getMaxConcurrentCommits() {
+        return this.maxConcurrentCommits.get();
+    }
+
+    long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    long getCommitCount() {
+        return this.commitCount.get();
+    }
+
+    long getStaleCount() {
+        return this.staleCount.get();
+    }
+
+    long getRateLimitedCount() {
+        return this.rateLimitedCount.get();
+    }
+
+    /**
+     * @return the number of requests of the token which are not rejected
+     */
+    long getRequestCount(String token) {
+        Window w = this.windows.get(token);
+        return w == null ? 0 : w.total;
+    }
+
+    long getReceivedBytes() {
+        return this.receivedBytes.get();
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        this.requestCount.incrementAndGet();
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            in = new GZIPInputStream(in);
+        }
+        String body = StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+        this.receivedBytes.addAndGet(body.length());
+        boolean mutation = body.contains("createCommitOnBranch");
+        if (mutation) {
+            this.maxConcurrentCommits.accumulateAndGet(this.concurrentCommits.incrementAndGet(), Math::max);
+        }
+        try {
+            sleep(this.latency);
+        } finally {
+            if (mutation) {
+                this.concurrentCommits.decrementAndGet();
+            }
+        }
+        if (this.failureRate > 0 && ThreadLocalRandom.current().nextDouble() < this.failureRate) {
+            respond(exchange, 502, "{\"message\":\"Server Error\"}");
+            return;
+        }
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("Bearer ")) {
+            respond(exchange, 401, "{\"message\":\"Bad credentials\"}");
+            return;
+        }
+        if (!acquire(exchange, authorization.substring("Bearer ".length()))) {
+            this.rateLimitedCount.incrementAndGet();
+            respond(exchange, 403, "{\"message\":\"API rate limit exceeded\"}");
+            return;
+        }
+        JsonNode request;
+        try {
+            request = JSON.readTree(body);
+        } catch (IOException e) {
+            respond(exchange, 400, "{\"message\":\"Problems parsing JSON\"}");
+            return;
+        }
+        String query = request.path("query").asText();
+        JsonNode variables = request.path("variables");
+        ObjectNode response;
+        if (query.contains("createCommitOnBranch")) {
+            response = createCommitOnBranch(variables.path("input"));
+        } else if (query.contains("ref(qualifiedName")) {
+            response = queryRefs(query, variables);
+        } else if (query.contains("object(expression")) {
+            response = queryBlobs(variables);
+        } else {
+            response = error("UNKNOWN", "Unsupported query");
+        }
+        if (query.contains("rateLimit")) {
+            response.with("data").putObject("rateLimit").put("cost", 1).put("remaining", 5000)
+                    .put("resetAt", Instant.now().plus(Duration.ofHours(1)).truncatedTo(ChronoUnit.SECONDS).toString());
+        }
+        respond(exchange, 200, JSON.writeValueAsString(response));
+    }
+
+    /**
+     * Count the request in the window of the token, with the rate limit
+     * headers of github.
+     *
+     * @return false if the token has run out of its window
+     */
+    private boolean acquire(HttpExchange exchange, String token) {
+        Window w = this.windows.computeIfAbsent(token, k -> new Window());
+        synchronized (w) {
+            w.total++;
+            if (this.rateLimit <= 0) {
+                return true;
+            }
+            long now = System.currentTimeMillis();
+            if (now >= w.resetAt) {
+                w.used = 0;
+                w.resetAt = now + this.rateLimitWindow.toMillis();
+            }
+            boolean acquired = w.used < this.rateLimit;
+            if (acquired) {
+                w.used++;
+            } else {
+                w.total--;
+            }
+            exchange.getResponseHeaders().set("x-ratelimit-limit", String.valueOf(this.rateLimit));
+            exchange.getResponseHeaders().set("x-ratelimit-remaining", String.valueOf(this.rateLimit - w.used));
+            exchange.getResponseHeaders().set("x-ratelimit-reset", String.valueOf((w.resetAt + 999) / 1000));
+            return acquired;
+        }
+    }
+
+    /**
+     * Resolve the exact refs of the (aliased) repositories in the query, a
+     * ref belongs to the repository before it.
+     */
+    private ObjectNode queryRefs(String query, JsonNode variables) {
+        ObjectNode response = JSON.createObjectNode();
+        ObjectNode data = response.putObject("data");
+        ObjectNode repository = null;
+        String repoNameWithOwner = null;
+        Matcher m = REF_FIELD.matcher(query);
+        while (m.find()) {
+            if (m.group(2) != null) {
+                repoNameWithOwner = variables.path(m.group(2)).asText() + "/" + variables.path(m.group(3)).asText();
+                repository = data.putObject(m.group(1) != null ? m.group(1) : "repository");
+            } else {
+                String ref = variables.path(m.group(5)).asText();
+                String alias = m.group(4) != null ? m.group(4) : "ref";
+                if (!ref.startsWith("refs/heads/")) {
+                    repository.putNull(alias);
+                    continue;
+                }
+                Branch b = branchOf(repoNameWithOwner, ref.substring("refs/heads/".length()));
+                repository.putObject(alias).putObject("target").put("oid", b.head);
+            }
+        }
+        return response;
+    }
+
+    private ObjectNode queryBlobs(JsonNode variables) {
+        String repoNameWithOwner = variables.path("owner").asText() + "/" + variables.path("name").asText();
+        ObjectNode response = JSON.createObjectNode();
+        ObjectNode repository = response.putObject("data").putObject("repository");
+        for (int i = 0; variables.has("e" + i); i++) {
+            String[] expression = variables.get("e" + i).asText().split(":", 2);
+            byte[] content = findFile(repoNameWithOwner, expression[0], expression[1]);
+            if (content == null) {
+                repository.putNull("f" + i);
+            } else {
+                repository.putObject("f" + i).put("oid", blobOid(content));
+            }
+        }
+        return response;
+    }
+
+    private ObjectNode createCommitOnBranch(JsonNode input) {
+        String repoNameWithOwner = input.path("branch").path("repositoryNameWithOwner").asText();
+        String expectedHeadOid = input.path("expectedHeadOid").asText();
+        Branch b = branchOf(repoNameWithOwner, input.path("branch").path("branchName").asText());
+        synchronized (b) {
+            if (this.contendedCommits.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                b.files.putAll(this.contendedFiles);
+                b.head = newOid();
+                b.commits.put(b.head, new HashMap<>(b.files));
+            }
+            if (input.path("message").path("headline").asText().equals(this.rejectedHeadline)) {
+                ObjectNode response = error("FORBIDDEN", "Resource not accessible by integration");
+                response.putObject("data").putNull("createCommitOnBranch");
+                return response;
+            }
+            if (!b.head.equals(expectedHeadOid)) {
+                this.staleCount.incrementAndGet();
+                ObjectNode response = error("STALE_DATA",
+                        "Expected branch to point to \"" + expectedHeadOid + "\" but it did not. Pull and try again.");
+                response.putObject("data").putNull("createCommitOnBranch");
+                return response;
+            }
+            for (JsonNode item : input.path("fileChanges").path("deletions")) {
+                b.files.remove(item.path("path").asText());
+            }
+            for (JsonNode item : input.path("fileChanges").path("additions")) {
+                b.files.put(item.path("path").asText(), Base64.getDecoder().decode(item.path("contents").asText()));
+            }
+            b.head = newOid();
+            b.commits.put(b.head, new HashMap<>(b.files));
+            b.headlines.add(input.path("message").path("headline").asText());
+            this.commitCount.incrementAndGet();
+            ObjectNode response = JSON.createObjectNode();
+            response.putObject("data").putObject("createCommitOnBranch").putObject("commit")
+                    .put("oid", b.head)
+                    .put("url", "https://github.com/" + repoNameWithOwner + "/commit/" + b.head);
+            return response;
+        }
+    }
+
+    private byte[] findFile(String repoNameWithOwner, String commitOid, String path) {
+        for (Map.Entry<String, Branch> item : this.branches.entrySet()) {
+            if (item.getKey().startsWith(repoNameWithOwner + ":")) {
+                Map<String, byte[]> files = item.getValue().commits.get(commitOid);
+                if (files != null) {
+                    return files.get(path);
+                }
+            }
+        }
+        return null;
+    }
+
+    private Branch branchOf(String repoNameWithOwner, String branch) {
+        return this.branches.computeIfAbsent(repoNameWithOwner + ":" + branch, k -> new Branch());
+    }
+
+    private static ObjectNode error(String type, String message) {
+        ObjectNode response = JSON.createObjectNode();
+        response.putArray("errors").addObject().put("type", type).put("message", message);
+        return response;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] data = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, data.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(data);
+        }
+    }
+
+    private static String blobOid(byte[] content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(("blob " + content.length + "\0").getBytes(StandardCharsets.US_ASCII));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest(content)) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String newOid() {
+        return (UUID.randomUUID().toString() + UUID.randomUUID().toString()).replace("-", "").substring(0, 40);
+    }
+
+    private static void sleep(Duration d) {
+        if (d.isZero()) {
+            return;
+        }
+        try {
+            Thread.sleep(d.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Window {
+        long total;
+        long used;
+        long resetAt;
+    }
+
+    private static class Branch {
+        volatile String head = newOid();
+        final Map<String, byte[]> files = new HashMap<>();
+        final List<String> headlines = new ArrayList<>();
+        /**
+         * The trees of the recent commits, for the blob lookup.
+         */
+        final Map<String, Map<String, byte[]>> commits = Collections.synchronizedMap(
+                new LinkedHashMap<String, Map<String, byte[]>>() {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, Map<String, byte[]>> eldest) {
+                        return size() > MAX_KEPT_COMMITS;
+                    }
+                });
+
+        Branch() {
+            this.commits.put(this.head, new HashMap<>());
+        }
+    }
+}
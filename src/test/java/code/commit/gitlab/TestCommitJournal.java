@@ -0,0 +1,232 @@
+package code.commit.gitlab;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+class TestCommitJournal {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    @DisplayName("Truncate the records of a failed append")
+    void truncateFailedAppend() throws IOException {
+        FailingJournal journal = new FailingJournal(dir);
+        try {
+            assertEquals(1, journal.append(payloads("a")));
+            long size = Files.size(dir.resolve(String.format("%020d.journal", 1)));
+            journal.failWrite = true;
+            assertThrows(IOException.class, () -> journal.append(payloads("b", "c")));
+            assertEquals(size, Files.size(dir.resolve(String.format("%020d.journal", 1))));
+            journal.failWrite = false;
+            assertEquals(2, journal.append(payloads("d")));
+            assertRecord("a", journal.read(1));
+            assertRecord("d", journal.read(2));
+        } finally {
+            journal.close();
+        }
+        try (CommitJournal recovered = new CommitJournal(dir, 1024)) {
+            assertEquals(2, recovered.getLastSeq());
+            assertRecord("a", recovered.read(1));
+            assertRecord("d", recovered.read(2));
+        }
+    }
+
+    @Test
+    @DisplayName("Start a new segment if a failed append can not be truncated")
+    void rollAfterFailedTruncate() throws IOException {
+        FailingJournal journal = new FailingJournal(dir);
+        try {
+            assertEquals(1, journal.append(payloads("a")));
+            journal.failWrite = true;
+            journal.failTruncate = true;
+            assertThrows(IOException.class, () -> journal.append(payloads("b", "c")));
+            journal.failWrite = false;
+            journal.failTruncate = false;
+            assertEquals(2, journal.append(payloads("d")));
+            assertEquals(Arrays.asList(1L, 2L), segments());
+        } finally {
+            journal.close();
+        }
+        try (CommitJournal recovered = new CommitJournal(dir, 1024)) {
+            assertEquals(2, recovered.getLastSeq());
+            // the record "b" of the failed append is left in the former segment
+            assertRecord("a", recovered.read(1));
+            assertRecord("d", recovered.read(2));
+            recovered.checkpoint(2);
+            // the former segment is drained
+            assertEquals(Collections.singletonList(2L), segments());
+            assertEquals(3, recovered.append(payloads("e")));
+            assertRecord("e", recovered.read(3));
+        }
+    }
+
+    private static List<byte[]> payloads(String... values) {
+        return Arrays.stream(values).map(v -> v.getBytes(StandardCharsets.UTF_8)).collect(Collectors.toList());
+    }
+
+    private static void assertRecord(String expected, ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), bytes);
+    }
+
+    private List<Long> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(p -> p.getFileName().toString()).filter(n -> n.endsWith(".journal"))
+                    .map(n -> Long.parseLong(n.substring(0, n.length() - ".journal".length()))).sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * The journal whose segments fail in the middle of writing, and fail to
+     * be truncated.
+     */
+    static class FailingJournal extends CommitJournal {
+
+        volatile boolean failWrite;
+        volatile boolean failTruncate;
+
+        FailingJournal(Path directory) throws IOException {
+            super(directory, 1024);
+        }
+
+        @Override
+        FileChannel openSegment(Path segment, OpenOption... options) throws IOException {
+            return new FailingChannel(FileChannel.open(segment, options));
+        }
+
+        class FailingChannel extends FileChannel {
+
+            private final FileChannel channel;
+
+            FailingChannel(FileChannel channel) {
+                this.channel = channel;
+            }
+
+            @Override
+            public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+                if (!failWrite) {
+                    return this.channel.write(srcs, offset, length);
+                }
+                // the whole first record is written before the failure
+                this.channel.write(srcs, offset, 2);
+                throw new IOException("Injected write failure");
+            }
+
+            @Override
+            public FileChannel truncate(long size) throws IOException {
+                if (failTruncate) {
+                    throw new IOException("Injected truncate failure");
+                }
+                this.channel.truncate(size);
+                return this;
+            }
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                return this.channel.read(dst);
+            }
+
+            @Override
+            public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+                return this.channel.read(dsts, offset, length);
+            }
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                return this.channel.write(src);
+            }
+
+            @Override
+            public long position() throws IOException {
+                return this.channel.position();
+            }
+
+            @Override
+            public FileChannel position(long newPosition) throws IOException {
+                this.channel.position(newPosition);
+                return this;
+            }
+
+            @Override
+            public long size() throws IOException {
+                return this.channel.size();
+            }
+
+            @Override
+            public void force(boolean metaData) throws IOException {
+                this.channel.force(metaData);
+            }
+
+            @Override
+            public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+                return this.channel.transferTo(position, count, target);
+            }
+
+            @Override
+            public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+                return this.channel.transferFrom(src, position, count);
+            }
+
+            @Override
+            public int read(ByteBuffer dst, long position) throws IOException {
+                return this.channel.read(dst, position);
+            }
+
+            @Override
+            public int write(ByteBuffer src, long position) throws IOException {
+                return this.channel.write(src, position);
+            }
+
+            @Override
+            public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+                return this.channel.map(mode, position, size);
+            }
+
+            @Override
+            public FileLock lock(long position, long size, boolean shared) throws IOException {
+                return this.channel.lock(position, size, shared);
+            }
+
+            @Override
+            public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+                return this.channel.tryLock(position, size, shared);
+            }
+
+            @Override
+            protected void implCloseChannel() throws IOException {
+                this.channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package code.commit.gitlab;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import code.commit.CommitApplication;
+
+/**
+ * Commit with multipart requests to {@link GithubCommitController}, which
+ * commits to a {@link FakeGithubGraphqlServer}.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+@SpringBootTest(classes = CommitApplication.class, webEnvironment = WebEnvironment.RANDOM_PORT)
+class TestGithubCommitController {
+
+    static FakeGithubGraphqlServer server;
+
+    @Autowired
+    TestRestTemplate client;
+
+    @Autowired
+    ApplicationContext context;
+
+    @DynamicPropertySource
+    static void githubEndpoint(DynamicPropertyRegistry registry) throws IOException {
+        server = new FakeGithubGraphqlServer();
+        registry.add("github.commit.endpoint", server::getEndpoint);
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.close();
+    }
+
+    @Test
+    @DisplayName("Keep the default task executor of the application")
+    void keepDefaultTaskExecutor() {
+        assertTrue(context.containsBean("applicationTaskExecutor"));
+    }
+
+    @Test
+    @DisplayName("Commit the file parts of a multipart request")
+    @SuppressWarnings("rawtypes")
+    void commitFileParts() {
+        MultiValueMap<String, Object> parts = form("Add two files");
+        parts.add("file", file("docs/a.txt", "a"));
+        parts.add("file", file("docs/b.bin", "b"));
+        ResponseEntity<Map> response = client.postForEntity("/github/commits", request(parts), Map.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(server.getHead("zhwlin", "demo", "web"), response.getBody().get("oid"));
+        assertArrayEquals("a".getBytes(StandardCharsets.UTF_8), server.getFile("zhwlin", "demo", "web", "docs/a.txt"));
+
+        parts = form("Delete a file");
+        parts.add("deletion", "docs/a.txt");
+        response = client.postForEntity("/github/commits", request(parts), Map.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertNull(server.getFile("zhwlin", "demo", "web", "docs/a.txt"));
+    }
+
+    @Test
+    @DisplayName("Reject a form field after the files")
+    @SuppressWarnings("rawtypes")
+    void rejectFieldAfterFiles() {
+        MultiValueMap<String, Object> parts = form("Bad order");
+        parts.add("file", file("docs/c.txt", "c"));
+        parts.add("deletion", "docs/b.bin");
+        ResponseEntity<Map> response = client.postForEntity("/github/commits", request(parts), Map.class);
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
+    @Test
+    @DisplayName("Only accept the callers of the token pool")
+    void acceptTokenPoolOnly() {
+        GithubCommitOptions options = new GithubCommitOptions().setEndpoint(server.getEndpoint())
+                .setTokenPool(Arrays.asList("token-1", "token-2"));
+        try (GithubCommitOperation operation = new GithubCommitOperation(options)) {
+            GithubCommitController controller = new GithubCommitController(operation, options);
+            assertThrows(SecurityException.class, () -> controller.commit(null, "Bearer token"));
+            assertNotNull(controller.commit(null, "Bearer token-2"));
+            controller.destroy();
+        }
+    }
+
+    private static MultiValueMap<String, Object> form(String headline) {
+        MultiValueMap<String, Object> parts = new LinkedMultiValueMap<>();
+        parts.add("owner", "zhwlin");
+        parts.add("repo", "demo");
+        parts.add("branch", "web");
+        parts.add("headline", headline);
+        return parts;
+    }
+
+    private static HttpEntity<MultiValueMap<String, Object>> request(MultiValueMap<String, Object> parts) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.MULTIPART_FORM_DATA);
+        headers.setBearerAuth("token");
+        return new HttpEntity<>(parts, headers);
+    }
+
+    private static ByteArrayResource file(String relativePath, String content) {
+        return new ByteArrayResource(content.getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public String getFilename() {
+                return relativePath;
+            }
+        };
+    }
+}
@@ -0,0 +1,689 @@
+package code.commit.gitlab;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Commit to a {@link FakeGithubGraphqlServer}.
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+class TestGithubCommitOperation {
+
+    String owner = "zhwlin";
+    String repoName = "demo";
+    String branch = "test";
+
+    @TempDir
+    Path dir;
+
+    FakeGithubGraphqlServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = new FakeGithubGraphqlServer();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.close();
+    }
+
+    @Test
+    @DisplayName("Add and delete files")
+    void addAndDeleteFiles() throws IOException {
+        GithubCommitOperation action = new GithubCommitOperation(options());
+        SourceFilesChangeListBuilder changes = SourceFilesChangeListBuilder.create()
+                                        .addUpdateFile(Paths.get("HELP.md"), "HELP.md")
+                                        .addUpdateFile(Paths.get("src/main/resources/static/test.jpg"), "a/test.jpg");
+        CommitResult result = action.commit(input("Add two files", changes));
+        assertEquals(server.getHead(owner, repoName, branch), result.getOid());
+        assertArrayEquals(Files.readAllBytes(Paths.get("src/main/resources/static/test.jpg")),
+                server.getFile(owner, repoName, branch, "a/test.jpg"));
+
+        action.commit(input("Delete one file", SourceFilesChangeListBuilder.create().addDeleteFile("HELP.md")));
+        assertNull(server.getFile(owner, repoName, branch, "HELP.md"));
+        assertEquals(2, server.getCommitCount());
+    }
+
+    @Test
+    @DisplayName("Commit through the pooled connections of the apache http client")
+    void commitThroughPooledConnections() throws IOException {
+        for (boolean gzip : new boolean[] { false, true }) {
+            GithubCommitOptions options = options().setMaxConnections(4).setGzipRequest(gzip);
+            HttpGraphqlTransport transport = new HttpGraphqlTransport(options);
+            try {
+                GithubCommitOperation action = new GithubCommitOperation(options.setTransport(transport));
+                SourceFilesChangeListBuilder changes = SourceFilesChangeListBuilder.create()
+                        .addUpdateFile(Paths.get("src/main/resources/static/test.jpg"), "a/test.jpg");
+                CommitResult result = action.commit(input("Pooled, gzip: " + gzip, changes));
+                assertEquals(server.getHead(owner, repoName, branch), result.getOid());
+                assertArrayEquals(Files.readAllBytes(Paths.get("src/main/resources/static/test.jpg")),
+                        server.getFile(owner, repoName, branch, "a/test.jpg"));
+
+                GraphqlResponse response = transport.post("token", GraphqlRequestBody.of("{\"query\":\"{ viewer }\"}"
+                        .getBytes(StandardCharsets.UTF_8)));
+                assertEquals(200, response.getStatusCode());
+                assertTrue(response.getBody().contains("Unsupported query"), response.getBody());
+            } finally {
+                transport.close();
+            }
+        }
+        assertEquals(2, server.getCommitCount());
+
+        // the operation pools the connections of the transport it builds, and closes them
+        GithubCommitOperation action = new GithubCommitOperation(options());
+        action.commit(input("Owned transport", changesOf("a.txt", "1")));
+        action.close();
+        assertThrows(IllegalStateException.class, () -> action.commit(input("Closed", changesOf("a.txt", "2"))));
+        assertEquals(3, server.getCommitCount());
+    }
+
+    @Test
+    @DisplayName("Fail on a moved head")
+    void failOnMovedHead() throws IOException {
+        server.setLatency(Duration.ofMillis(10));
+        GithubCommitOperation action = new GithubCommitOperation(options().setHeadCacheTtl(Duration.ofMinutes(1)));
+        action.commit(input("First", changesOf("a.txt", "1")));
+        server.moveHead(owner, repoName, branch);
+        action.commit(input("Second", changesOf("a.txt", "2")));
+        assertEquals(1, action.getHeadCache().getStaleCount());
+        assertEquals(1, action.getHeadCache().getHitCount());
+        assertEquals("2", new String(server.getFile(owner, repoName, branch, "a.txt"), StandardCharsets.UTF_8));
+
+        GithubCommitOperation uncached = new GithubCommitOperation(options());
+        server.setFailureRate(1);
+        assertThrows(GithubRemoteRepositoryOperationException.class,
+                () -> uncached.commit(input("Third", changesOf("a.txt", "3"))));
+    }
+
+    @Test
+    @DisplayName("Retry a commit on a contended branch")
+    void retryOnContendedBranch() throws IOException {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        GithubCommitOperation action = new GithubCommitOperation(options().setMeterRegistry(registry)
+                .setMaxStaleHeadRetries(3).setStaleHeadRetryBackoff(Duration.ofMillis(5)));
+        server.contendNextCommits(2);
+        CommitResult result = action.commit(input("First", changesOf("a.txt", "1")));
+        assertEquals(2, result.getRetries());
+        assertTrue(result.getWastedBytes() > 0);
+        assertEquals(server.getHead(owner, repoName, branch), result.getOid());
+        assertEquals("1", new String(server.getFile(owner, repoName, branch, "a.txt"), StandardCharsets.UTF_8));
+        assertEquals(2, registry.get(CommitMetrics.METER_RETRIES).counter().count());
+        assertEquals(result.getWastedBytes(), registry.get(CommitMetrics.METER_RETRIES_WASTED).counter().count());
+
+        // the large request is written from the files again
+        GithubCommitOperation unretained = new GithubCommitOperation(options().setMaxStaleHeadRetries(1)
+                .setStaleHeadRetryBackoff(Duration.ofMillis(5)).setMaxRetainedRequestSize(DataSize.ofBytes(0)));
+        server.contendNextCommits(1);
+        assertEquals(1, unretained.commit(input("Second", changesOf("a.txt", "2"))).getRetries());
+        assertEquals("2", new String(server.getFile(owner, repoName, branch, "a.txt"), StandardCharsets.UTF_8));
+
+        server.contendNextCommits(2);
+        SourceFilesChangeListBuilder third = changesOf("a.txt", "3");
+        assertThrows(GithubStaleHeadOidException.class, () -> unretained.commit(input("Third", third)));
+    }
+
+    @Test
+    @DisplayName("Compare the skipped files with the head moved by another writer")
+    void compareSkippedFilesOnMovedHead() throws IOException {
+        for (boolean cached : new boolean[] { false, true }) {
+            String moved = "moved-" + cached;
+            GithubCommitOperation action = new GithubCommitOperation(options().setSkipUnchangedFiles(true)
+                    .setMaxStaleHeadRetries(3).setStaleHeadRetryBackoff(Duration.ofMillis(5))
+                    .setHeadCacheTtl(cached ? Duration.ofMinutes(1) : null));
+            action.commit(input("First", SourceFilesChangeListBuilder.create()
+                    .addUpdateContent(bytesOf("1"), "a.txt").addUpdateContent(bytesOf("1"), "b.txt")).setBranch(moved));
+            // another writer changes the skipped file right before the commit
+            server.contendNextCommits(1, Collections.singletonMap("a.txt", bytesOf("X")));
+            CommitResult result = action.commit(input("Second", SourceFilesChangeListBuilder.create()
+                    .addUpdateContent(bytesOf("1"), "a.txt").addUpdateContent(bytesOf("2"), "b.txt")).setBranch(moved));
+            // the cached head is looked up again without counting a retry
+            assertEquals(cached ? 0 : 1, result.getRetries());
+            assertArrayEquals(bytesOf("1"), server.getFile(owner, repoName, moved, "a.txt"));
+            assertArrayEquals(bytesOf("2"), server.getFile(owner, repoName, moved, "b.txt"));
+
+            // all files are unchanged on the former head
+            server.commitFile(owner, repoName, moved, "a.txt", bytesOf("Y"));
+            result = action.commit(input("Third", SourceFilesChangeListBuilder.create()
+                    .addUpdateContent(bytesOf("1"), "a.txt")).setBranch(moved));
+            assertFalse(result.isSkipped());
+            assertArrayEquals(bytesOf("1"), server.getFile(owner, repoName, moved, "a.txt"));
+        }
+    }
+
+    @Test
+    @DisplayName("Look up the heads of many branches in batches")
+    void lookupHeadsInBatches() throws IOException {
+        GithubCommitOperation action = new GithubCommitOperation(options().setHeadLookupMaxCost(4)
+                .setHeadCacheTtl(Duration.ofMinutes(1)));
+        action.commit(input("First", changesOf("a.txt", "1")).setBranch("test-2"));
+        List<BranchRef> branches = Arrays.asList(BranchRef.of(owner, repoName, "test"),
+                BranchRef.of(owner, repoName, "test-2"), BranchRef.of(owner, repoName, "dev"),
+                BranchRef.of(owner, "other", "test"), BranchRef.of(owner, "other", "test"));
+        long requests = server.getRequestCount();
+        Map<BranchRef, String> heads = action.lookupHeads("token", branches);
+        // (1 + 3) + (1 + 1)
+        assertEquals(2, server.getRequestCount() - requests);
+        assertEquals(4, heads.size());
+        for (BranchRef item : branches) {
+            assertEquals(server.getHead(item.getOwner(), item.getRepoName(), item.getBranch()), heads.get(item));
+        }
+        assertFalse(heads.get(branches.get(0)).equals(heads.get(branches.get(1))));
+
+        action.commit(input("Second", changesOf("a.txt", "2")).setBranch("dev"));
+        assertEquals(1, action.getHeadCache().getHitCount());
+    }
+
+    @Test
+    @DisplayName("Split a change list into chained commits")
+    void splitIntoChainedCommits() throws IOException {
+        GithubCommitOperation action = new GithubCommitOperation(options().setMaxCommitSize(DataSize.ofBytes(200)));
+        SourceFilesChangeListBuilder changes = SourceFilesChangeListBuilder.create();
+        for (int i = 0; i < 5; i++) {
+            changes.addUpdateFile(createFile("f" + i + ".txt", new String(new char[100]).replace('\0', 'x')),
+                    "f" + i + ".txt");
+        }
+        action.commit(input("Split", changes));
+        assertEquals(5, server.getCommitCount());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(100, server.getFile(owner, repoName, branch, "f" + i + ".txt").length);
+        }
+    }
+
+    @Test
+    @DisplayName("Skip unchanged files")
+    void skipUnchangedFiles() throws IOException {
+        GithubCommitOperation action = new GithubCommitOperation(options().setSkipUnchangedFiles(true));
+        action.commit(input("First", changesOf("a.txt", "1").addUpdateFile(createFile("b.txt", "2"), "b.txt")));
+        CommitResult result = action.commit(input("Second", changesOf("a.txt", "1")));
+        assertTrue(result.isSkipped());
+        assertEquals(1, result.getSkippedBytes());
+
+        result = action.commit(input("Third",
+                changesOf("a.txt", "1").addUpdateFile(createFile("c.txt", "3"), "b.txt")));
+        assertFalse(result.isSkipped());
+        assertEquals(1, result.getSkippedBytes());
+        assertEquals(2, server.getCommitCount());
+    }
+
+    @Test
+    @DisplayName("Commit paths and messages with special characters")
+    void commitSpecialCharacters() throws IOException {
+        GithubCommitOperation action = new GithubCommitOperation(options());
+        String path = "dir/a \"q\" \\ \u00fc\u6587.txt";
+        CommitInput ci = input("Head \"line\" \\ \u00fc", changesOf(path, "x"))
+                            .setCommitMsgBody("body\r\nwith \t tab");
+        action.commit(ci);
+        assertArrayEquals("x".getBytes(StandardCharsets.UTF_8), server.getFile(owner, repoName, branch, path));
+    }
+
+    @Test
+    @DisplayName("Spread requests over a token pool within the rate limit")
+    void spreadOverTokenPool() throws IOException {
+        server.setRateLimit(2, Duration.ofSeconds(1));
+        GithubCommitOperation action = new GithubCommitOperation(
+                options().setTokenPool(Arrays.asList("token-1", "token-2")));
+        for (int i = 0; i < 4; i++) {
+            action.commit(input("Commit " + i, changesOf("a.txt", String.valueOf(i))));
+        }
+        assertEquals(4, server.getCommitCount());
+        assertEquals(4, server.getRequestCount("token-1"));
+        assertEquals(4, server.getRequestCount("token-2"));
+        assertEquals(0, server.getRateLimitedCount());
+        assertTrue(action.getRateLimitScheduler().getWaitedNanos() > 0);
+        assertEquals(4, action.getRateLimitScheduler().getTotalCost());
+    }
+
+    @Test
+    @DisplayName("Encode files in parallel")
+    void encodeInParallel() throws IOException {
+        GithubCommitOperation action = new GithubCommitOperation(options().setEncodeParallelism(4)
+                .setMaxEncodeBufferSize(DataSize.ofMegabytes(1)));
+        byte[] large = new byte[ParallelBase64Encoder.CHUNK_SIZE * 2 + 1];
+        new Random(1).nextBytes(large);
+        SourceFilesChangeListBuilder changes = SourceFilesChangeListBuilder.create()
+                .addUpdateFile(Files.write(dir.resolve("large.bin"), large), "large.bin")
+                .addUpdateFile(createFile("empty.txt", ""), "empty.txt");
+        for (int i = 0; i < 20; i++) {
+            changes.addUpdateFile(createFile("f" + i + ".txt", "file " + i), "f" + i + ".txt");
+        }
+        action.commit(input("Parallel", changes));
+        assertArrayEquals(large, server.getFile(owner, repoName, branch, "large.bin"));
+        assertEquals(0, server.getFile(owner, repoName, branch, "empty.txt").length);
+        for (int i = 0; i < 20; i++) {
+            assertEquals("file " + i,
+                    new String(server.getFile(owner, repoName, branch, "f" + i + ".txt"), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    @DisplayName("Cache the encoded contents of files committed to many branches")
+    void cacheEncodedContents() throws IOException {
+        Path jar = Paths.get("src/main/resources/static/h2-1.4.200.jar");
+        Path text = createFile("a.txt", "1");
+        byte[] data = Files.readAllBytes(jar);
+        for (int parallelism : new int[] { 1, 2 }) {
+            GithubCommitOperation action = new GithubCommitOperation(options().setEncodeParallelism(parallelism)
+                    .setContentCacheSize(DataSize.ofMegabytes(4)));
+            for (String b : Arrays.asList("b1", "b2", "b3")) {
+                action.commit(input("Add a jar", SourceFilesChangeListBuilder.create().addUpdateFile(text, "a.txt")
+                        .addUpdateFile(jar, "h2.jar")).setBranch(b));
+                assertArrayEquals(data, server.getFile(owner, repoName, b, "h2.jar"));
+                assertArrayEquals("1".getBytes(StandardCharsets.UTF_8), server.getFile(owner, repoName, b, "a.txt"));
+            }
+            EncodedContentCache cache = action.getContentCache();
+            assertEquals(4, cache.getHitCount());
+            assertEquals(2, cache.getMissCount());
+            assertEquals(2, cache.size());
+
+            // the least recently used contents are evicted to make room
+            Path big = createFile("big.bin", new String(new char[1024 * 1024]).replace('\0', 'x'));
+            action.commit(input("Add a big file", SourceFilesChangeListBuilder.create().addUpdateFile(big, "big")));
+            assertTrue(cache.getEvictionCount() > 0);
+            assertTrue(cache.getTotalBytes() <= DataSize.ofMegabytes(4).toBytes());
+            assertEquals(1024 * 1024, server.getFile(owner, repoName, branch, "big").length);
+        }
+    }
+
+    @Test
+    @DisplayName("Commit contents in memory and streams")
+    void commitContentsInMemory() throws IOException {
+        byte[] data = new byte[4 * 1024 * 1024 + 1];
+        new Random(7).nextBytes(data);
+        Path file = Files.write(dir.resolve("mapped.bin"), data);
+        for (int parallelism : new int[] { 1, 2 }) {
+            GithubCommitOperation action = new GithubCommitOperation(options().setEncodeParallelism(parallelism));
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length).put(data);
+            direct.flip();
+            ByteBuffer mapped;
+            try (FileChannel channel = FileChannel.open(file)) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, data.length);
+            }
+            SourceFilesChangeListBuilder changes = SourceFilesChangeListBuilder.create()
+                    .addUpdateContent(data, "bytes.bin")
+                    .addUpdateContent(direct, "direct.bin")
+                    .addUpdateContent(mapped, "mapped.bin")
+                    .addUpdateContent("héllo", StandardCharsets.UTF_8, "text.txt")
+                    .addUpdateContent(() -> new ByteArrayInputStream(data), data.length, "stream.bin");
+            action.commit(input("Add contents", changes));
+            for (String path : Arrays.asList("bytes.bin", "direct.bin", "mapped.bin", "stream.bin")) {
+                assertArrayEquals(data, server.getFile(owner, repoName, branch, path), path);
+            }
+            assertEquals("héllo", new String(server.getFile(owner, repoName, branch, "text.txt"),
+                    StandardCharsets.UTF_8));
+        }
+
+        GithubCommitOperation action = new GithubCommitOperation(options());
+        SourceFilesChangeListBuilder changes = SourceFilesChangeListBuilder.create()
+                .addUpdateContent(() -> new ByteArrayInputStream(data), data.length + 1, "short.bin");
+        assertThrows(GithubRemoteRepositoryOperationException.class, () -> action.commit(input("Short", changes)));
+    }
+
+    @Test
+    @DisplayName("Send the commits to one branch in order and to different branches in parallel")
+    void commitAsynchronously() throws Exception {
+        server.setLatency(Duration.ofMillis(100));
+        GithubCommitOperation action = new GithubCommitOperation(options());
+        // virtual threads on JDK 21 or above, a fixed pool otherwise
+        AsyncCommitOperation async = new AsyncCommitOperation(action, 2);
+        List<CompletableFuture<CommitResult>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(async.submit(input("Commit " + i, changesOf("a.txt", String.valueOf(i)))));
+            futures.add(async.submit(input("Other " + i, changesOf("b.txt", String.valueOf(i))).setBranch("b" + i)));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+        async.shutdown();
+        assertEquals(Arrays.asList("Commit 0", "Commit 1", "Commit 2", "Commit 3"),
+                server.getHeadlines(owner, repoName, branch));
+        assertArrayEquals("3".getBytes(StandardCharsets.UTF_8), server.getFile(owner, repoName, branch, "a.txt"));
+        assertEquals(2, server.getMaxConcurrentCommits());
+        assertEquals(8, server.getCommitCount());
+    }
+
+    @Test
+    @DisplayName("Wait for the concurrency without blocking the threads of the executor")
+    void commitOnBoundedExecutor() throws Exception {
+        server.setLatency(Duration.ofMillis(200));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            AsyncCommitOperation async = new AsyncCommitOperation(new GithubCommitOperation(options()), executor, 1);
+            List<CompletableFuture<CommitResult>> futures = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                CommitInput input = input("Commit " + i, changesOf("a.txt", String.valueOf(i))).setBranch("b" + i);
+                futures.add(async.submit(input));
+            }
+            // a thread of the executor is left to other work while the commits wait for the permit
+            CompletableFuture.runAsync(() -> { }, executor).get(150, TimeUnit.MILLISECONDS);
+            assertFalse(futures.get(0).isDone());
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+            assertEquals(1, server.getMaxConcurrentCommits());
+            assertEquals(3, server.getCommitCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    @DisplayName("Group the commits to one branch and send the queued ones on shutdown")
+    void groupCommits() throws Exception {
+        server.setLatency(Duration.ofMillis(200));
+        GroupCommitOperation group = new GroupCommitOperation(new GithubCommitOperation(options()),
+                Duration.ofSeconds(30), 2, DataSize.ofMegabytes(1));
+        CompletableFuture<CommitResult> first = group.submit(input(null, changesOf("a.txt", "1")));
+        CompletableFuture<CommitResult> second = group.submit(input("Second", changesOf("b.txt", "2")));
+        // queued behind the group being sent, until the linger time
+        CompletableFuture<CommitResult> third = group.submit(input("Third", changesOf("c.txt", "3")));
+        group.shutdown();
+        assertTrue(third.isDone());
+        assertSame(first.get(), second.get());
+        assertFalse(third.get().getOid().equals(first.get().getOid()));
+        assertEquals(2, server.getCommitCount());
+        assertEquals(Arrays.asList("Second (and 1 more)", "Third"), server.getHeadlines(owner, repoName, branch));
+        assertArrayEquals("3".getBytes(StandardCharsets.UTF_8), server.getFile(owner, repoName, branch, "c.txt"));
+        assertThrows(IllegalStateException.class, () -> group.submit(input("Fourth", changesOf("d.txt", "4"))));
+    }
+
+    @Test
+    @DisplayName("Replay the journaled commits after a restart")
+    void replayJournalAfterRestart() throws IOException, InterruptedException {
+        Path journalDir = dir.resolve("journal");
+        GithubCommitOperation action = new GithubCommitOperation(options());
+        server.setFailureRate(1);
+        JournaledCommitOperation journaled = new JournaledCommitOperation(action, journalDir, false,
+                DataSize.ofBytes(256));
+        journaled.doAction(input("First", changesOf("a.txt", "1")));
+        journaled.doAction(input("Second", SourceFilesChangeListBuilder.create()
+                .addUpdateContent("2".getBytes(StandardCharsets.UTF_8), "b.txt")));
+        journaled.append(input("Third", SourceFilesChangeListBuilder.create().addDeleteFile("a.txt"))).join();
+        assertEquals(3, journaled.getAppendedSeq());
+        assertEquals(0, journaled.getDrainedSeq());
+        journaled.close();
+        // a torn record written when the process died
+        Path last;
+        try (Stream<Path> files = Files.list(journalDir)) {
+            last = files.filter(p -> p.toString().endsWith(".journal")).max(Comparator.naturalOrder()).get();
+        }
+        Files.write(last, new byte[] { 0, 0, 1, 0, 7 }, StandardOpenOption.APPEND);
+
+        server.setFailureRate(0);
+        journaled = new JournaledCommitOperation(action, journalDir, false, DataSize.ofBytes(256));
+        try {
+            journaled.doAction(input("Fourth", changesOf("c.txt", "3")));
+            assertTrue(journaled.awaitDrained(Duration.ofSeconds(10)));
+            assertEquals(4, journaled.getDrainedSeq());
+            assertEquals(0, journaled.getDeadLetterCount());
+        } finally {
+            journaled.close();
+        }
+        assertEquals(4, server.getCommitCount());
+        assertNull(server.getFile(owner, repoName, branch, "a.txt"));
+        assertArrayEquals("2".getBytes(StandardCharsets.UTF_8), server.getFile(owner, repoName, branch, "b.txt"));
+        assertArrayEquals("3".getBytes(StandardCharsets.UTF_8), server.getFile(owner, repoName, branch, "c.txt"));
+        try (Stream<Path> files = Files.list(journalDir)) {
+            assertEquals(1, files.filter(p -> p.toString().endsWith(".journal")).count());
+        }
+    }
+
+    @Test
+    @DisplayName("Move a journaled commit of a missing file to the dead letter file")
+    void deadLetterJournaledCommit() throws IOException, InterruptedException {
+        Path journalDir = dir.resolve("journal");
+        GithubCommitOperation action = new GithubCommitOperation(options());
+        server.setFailureRate(1);
+        JournaledCommitOperation journaled = new JournaledCommitOperation(action, journalDir);
+        journaled.doAction(input("First", changesOf("a.txt", "1")));
+        journaled.doAction(input("Second", changesOf("b.txt", "2")));
+        journaled.close();
+        Files.delete(dir.resolve("1.tmp"));
+
+        server.setFailureRate(0);
+        journaled = new JournaledCommitOperation(action, journalDir);
+        try {
+            assertTrue(journaled.awaitDrained(Duration.ofSeconds(10)));
+            assertEquals(2, journaled.getDrainedSeq());
+            assertEquals(1, journaled.getDeadLetterCount());
+        } finally {
+            journaled.close();
+        }
+        assertEquals(1, server.getCommitCount());
+        assertNull(server.getFile(owner, repoName, branch, "a.txt"));
+        assertArrayEquals("2".getBytes(StandardCharsets.UTF_8), server.getFile(owner, repoName, branch, "b.txt"));
+        assertTrue(Files.size(journalDir.resolve(CommitJournal.DEAD_LETTER)) > 0);
+    }
+
+    @Test
+    @DisplayName("Move a journaled commit rejected by github to the dead letter file")
+    void deadLetterRejectedCommit() throws IOException, InterruptedException {
+        GithubCommitOperation action = new GithubCommitOperation(options());
+        server.rejectCommits("First");
+        JournaledCommitOperation journaled = new JournaledCommitOperation(action, dir.resolve("journal"));
+        try {
+            journaled.doAction(input("First", changesOf("a.txt", "1")));
+            journaled.doAction(input("Second", changesOf("b.txt", "2")));
+            assertTrue(journaled.awaitDrained(Duration.ofSeconds(10)));
+            assertEquals(2, journaled.getDrainedSeq());
+            assertEquals(1, journaled.getDeadLetterCount());
+        } finally {
+            journaled.close();
+        }
+        assertEquals(Collections.singletonList("Second"), server.getHeadlines(owner, repoName, branch));
+        assertArrayEquals("2".getBytes(StandardCharsets.UTF_8), server.getFile(owner, repoName, branch, "b.txt"));
+    }
+
+    @Test
+    @DisplayName("Fail the journal once it stops replaying")
+    void failStoppedJournal() throws IOException, InterruptedException {
+        Path journalDir = dir.resolve("journal");
+        GithubCommitOperation action = new GithubCommitOperation(options());
+        server.setFailureRate(1);
+        JournaledCommitOperation journaled = new JournaledCommitOperation(action, journalDir);
+        journaled.doAction(input("First", changesOf("a.txt", "1")));
+        journaled.close();
+        Files.delete(dir.resolve("1.tmp"));
+        // the commit can not be moved to the dead letter file
+        Files.createDirectories(journalDir.resolve(CommitJournal.DEAD_LETTER));
+
+        journaled = new JournaledCommitOperation(action, journalDir);
+        try {
+            JournaledCommitOperation stopped = journaled;
+            GithubRemoteRepositoryOperationException e = assertThrows(GithubRemoteRepositoryOperationException.class,
+                    () -> stopped.awaitDrained(Duration.ofSeconds(10)));
+            assertTrue(e.getCause() instanceof IOException, String.valueOf(e.getCause()));
+            assertSame(e.getCause(), journaled.getDrainFailure());
+            assertThrows(GithubRemoteRepositoryOperationException.class,
+                    () -> stopped.append(input("Second", changesOf("b.txt", "2"))));
+            assertEquals(0, journaled.getDrainedSeq());
+        } finally {
+            journaled.close();
+        }
+    }
+
+    @Test
+    @DisplayName("Save the manifests of a journaled commit once it is replayed")
+    void saveManifestsAfterReplay() throws IOException, InterruptedException {
+        Path root = Files.createDirectories(dir.resolve("site"));
+        createFile("site/index.md", "index");
+        Path manifestFile = dir.resolve("manifest");
+        server.setFailureRate(1);
+        JournaledCommitOperation journaled = new JournaledCommitOperation(new GithubCommitOperation(options()),
+                dir.resolve("journal"));
+        try {
+            journaled.doAction(input("Sync", SourceFilesChangeListBuilder.create()
+                    .addDirectory(root, "docs", SyncManifest.load(manifestFile))));
+            assertFalse(Files.exists(manifestFile));
+            server.setFailureRate(0);
+            assertTrue(journaled.awaitDrained(Duration.ofSeconds(10)));
+        } finally {
+            journaled.close();
+        }
+        assertEquals(1, SyncManifest.load(manifestFile).size());
+        assertArrayEquals("index".getBytes(StandardCharsets.UTF_8),
+                server.getFile(owner, repoName, branch, "docs/index.md"));
+    }
+
+    @Test
+    @DisplayName("Run a batch of commits from a manifest")
+    void runCommitBatch() throws IOException {
+        createFile("a.txt", "1");
+        createFile("b.txt", "2");
+        String manifest = "endpoint: " + server.getEndpoint() + "\n"
+                + "token: token\n"
+                + "parallelism: 2\n"
+                + "commits:\n"
+                + "  - { owner: zhwlin, repo: demo, branch: test, message: First, files: { a.txt: "
+                + dir.resolve("a.txt") + " } }\n"
+                + "  - { owner: zhwlin, repo: demo, branch: other, message: Other, files: { b.txt: "
+                + dir.resolve("b.txt") + " } }\n"
+                + "  - { owner: zhwlin, repo: demo, branch: test, message: Second, deletions: [ a.txt ],"
+                + " files: { b.txt: " + dir.resolve("b.txt") + " } }\n";
+        Path manifestFile = Files.write(dir.resolve("commits.yml"), manifest.getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(0, CommitBatchCommand.run(manifestFile, new PrintStream(out, true, "UTF-8")));
+        assertTrue(out.toString("UTF-8").contains("3 commits, 0 failed"), out.toString("UTF-8"));
+        assertEquals(3, server.getCommitCount());
+        assertNull(server.getFile(owner, repoName, branch, "a.txt"));
+        assertArrayEquals("2".getBytes(StandardCharsets.UTF_8), server.getFile(owner, repoName, branch, "b.txt"));
+        assertArrayEquals("2".getBytes(StandardCharsets.UTF_8), server.getFile(owner, repoName, "other", "b.txt"));
+
+        Path invalid = Files.write(dir.resolve("invalid.json"),
+                "{\"commits\": [{\"owner\": \"zhwlin\", \"files\": {\"a.txt\": \"missing.txt\"}}]}"
+                        .getBytes(StandardCharsets.UTF_8));
+        assertEquals(2, CommitBatchCommand.run(invalid, new PrintStream(out, true, "UTF-8")));
+        Path empty = Files.write(dir.resolve("empty.json"), "{\"commits\": []}".getBytes(StandardCharsets.UTF_8));
+        assertEquals(2, CommitBatchCommand.run(empty, new PrintStream(out, true, "UTF-8")));
+    }
+
+    @Test
+    @DisplayName("Limit the payloads in flight")
+    void limitPayloadsInFlight() throws Exception {
+        PayloadBudget budget = new PayloadBudget(100, 0);
+        assertEquals(100, budget.acquire(150));
+        assertThrows(GithubRemoteRepositoryOperationException.class, () -> budget.acquire(1));
+        assertEquals(1, budget.getRejectedCount());
+        budget.release(100);
+
+        PayloadBudget blocking = new PayloadBudget(100, TimeUnit.SECONDS.toNanos(10));
+        blocking.acquire(60);
+        CompletableFuture<Long> waiting = CompletableFuture.supplyAsync(() -> blocking.acquire(60));
+        while (blocking.getWaitingCount() == 0) {
+            Thread.sleep(1);
+        }
+        assertFalse(waiting.isDone());
+        blocking.release(60);
+        assertEquals(60, waiting.get(10, TimeUnit.SECONDS));
+        assertEquals(60, blocking.getUsedBytes());
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        GithubCommitOperation action = new GithubCommitOperation(options().setMeterRegistry(registry)
+                .setMaxInFlightPayloadSize(DataSize.ofKilobytes(64)).setInFlightPayloadMaxWait(Duration.ZERO));
+        action.commit(input("First", changesOf("a.txt", "1")));
+        assertEquals(0, registry.get("github.commit.payload.budget.used").gauge().value());
+
+        action.payloadBudget.acquire(DataSize.ofKilobytes(64).toBytes());
+        assertThrows(GithubRemoteRepositoryOperationException.class,
+                () -> action.commit(input("Second", changesOf("a.txt", "2"))));
+        assertEquals(1, registry.get("github.commit.payload.budget.rejected").functionCounter().count());
+        assertEquals(1, server.getCommitCount());
+    }
+
+    @Test
+    @DisplayName("Record the metrics of phases")
+    void recordMetrics() throws IOException {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        GithubCommitOperation action = new GithubCommitOperation(options().setMeterRegistry(registry));
+        action.commit(input("First", changesOf("a.txt", "1").addUpdateFile(createFile("b.txt", "2"), "b.txt")));
+        for (String phase : Arrays.asList("head_lookup", "serialize", "file_read", "encode", "send", "wait",
+                "parse")) {
+            assertTrue(registry.get(CommitMetrics.METER_PHASE).tag("phase", phase).timers().stream()
+                    .mapToLong(Timer::count).sum() > 0, phase);
+        }
+        assertEquals(1, registry.get(CommitMetrics.METER_COMMIT).tags("repo", owner + "/" + repoName,
+                "branch", branch, "result", "success").timer().count());
+        assertEquals(2, registry.get(CommitMetrics.METER_FILES).summary().totalAmount());
+
+        // the parse is timed where it first happens, the later reads are cached
+        GraphqlResponse response = new GraphqlResponse().setBody("{\"data\":{}}");
+        assertEquals(0, response.getParseNanos());
+        response.getResult();
+        long parseNanos = response.getParseNanos();
+        assertTrue(parseNanos > 0);
+        response.getResult();
+        assertEquals(parseNanos, response.getParseNanos());
+
+        server.setFailureRate(1);
+        assertThrows(GithubRemoteRepositoryOperationException.class,
+                () -> action.commit(input("Second", changesOf("a.txt", "2"))));
+        assertEquals(1, registry.get(CommitMetrics.METER_ERRORS).tag("type", "HTTP_502").counter().count());
+        assertEquals(1, registry.get(CommitMetrics.METER_COMMIT).tag("result", "failure").timer().count());
+    }
+
+    private GithubCommitOptions options() {
+        return new GithubCommitOptions().setEndpoint(server.getEndpoint());
+    }
+
+    private SourceFilesChangeListBuilder changesOf(String relativePath, String content) throws IOException {
+        return SourceFilesChangeListBuilder.create().addUpdateFile(createFile(content + ".tmp", content), relativePath);
+    }
+
+    private static byte[] bytesOf(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Path createFile(String name, String content) throws IOException {
+        return Files.write(dir.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private CommitInput input(String headLine, SourceFilesChangeListBuilder changes) {
+        return new CommitInput()
+                    .setBranch(branch)
+                    .setOwner(owner)
+                    .setRepoName(repoName)
+                    .setUserToken("token")
+                    .setCommitMsgHeader(headLine)
+                    .setCommitMsgBody(changes.getChangeList())
+                    .setChangeList(changes);
+    }
+}
@@ -0,0 +1,178 @@
+package code.commit.gitlab;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author linzhw
+ * @version 1.0
+ *
+ */
+class TestSourceFilesChangeListBuilder {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    @DisplayName("Keep a small change list in one commit")
+    void splitSmallChangeList() throws IOException {
+        SourceFilesChangeListBuilder changes = SourceFilesChangeListBuilder.create()
+                                        .addUpdateFile(createFile("a.txt", 100), "a.txt")
+                                        .addDeleteFile("b.txt");
+        List<SourceFilesChangeListBuilder> parts = changes.split(1024);
+        assertEquals(1, parts.size());
+        assertSame(changes, parts.get(0));
+    }
+
+    @Test
+    @DisplayName("Split a large change list by encoded size")
+    void splitLargeChangeList() throws IOException {
+        SourceFilesChangeListBuilder changes = SourceFilesChangeListBuilder.create()
+                                        .addDeleteFile("old.txt");
+        for (int i = 0; i < 10; i++) {
+            changes.addUpdateFile(createFile("f" + i + ".bin", 300), "f" + i + ".bin");
+        }
+        long maxEncodedSize = 1024;
+        List<SourceFilesChangeListBuilder> parts = changes.split(maxEncodedSize);
+        assertTrue(parts.size() > 1);
+        assertEquals(1, parts.get(0).getDeletions().size());
+        int files = 0;
+        for (SourceFilesChangeListBuilder part : parts) {
+            files += part.getUpdates().size();
+            long size = part.getDeletions().stream()
+                            .mapToLong(SourceFilesChangeListBuilder::getEncodedSizeOfDeletion).sum()
+                      + part.getUpdates().keySet().stream()
+                            .mapToLong(p -> SourceFilesChangeListBuilder.getEncodedSizeOfAddition(p, 300)).sum();
+            assertTrue(size <= maxEncodedSize);
+        }
+        assertEquals(10, files);
+    }
+
+    @Test
+    @DisplayName("Merge change lists, the later change wins")
+    void mergeChangeLists() throws IOException {
+        Path a = createFile("a.txt", 10);
+        Path b = createFile("b.txt", 20);
+        SourceFilesChangeListBuilder changes = SourceFilesChangeListBuilder.create()
+                                        .addUpdateFile(a, "x.txt")
+                                        .addDeleteFile("y.txt")
+                                        .addUpdateFile(a, "z.txt");
+        changes.merge(SourceFilesChangeListBuilder.create()
+                                        .addUpdateFile(b, "x.txt")
+                                        .addUpdateFile(b, "y.txt")
+                                        .addDeleteFile("z.txt"));
+        assertEquals(b, changes.getUpdates().get("x.txt").getFile());
+        assertEquals(b, changes.getUpdates().get("y.txt").getFile());
+        assertEquals(2, changes.getUpdates().size());
+        assertEquals(Collections.singletonList("z.txt"), changes.getDeletions());
+    }
+
+    @Test
+    @DisplayName("Compute the git blob oid of a file")
+    void computeGitBlobOid() throws IOException {
+        Path file = Files.write(dir.resolve("hello.txt"), "hello\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals("ce013625030ba8dba906f756967f9e9ca394464a",
+                SourceFilesChangeListBuilder.computeGitBlobOid(file));
+    }
+
+    @Test
+    @DisplayName("Sync a directory with a manifest")
+    void syncDirectory() throws IOException {
+        Path root = Files.createDirectories(dir.resolve("site"));
+        Files.createDirectories(root.resolve("a/b"));
+        Files.createDirectories(root.resolve("target"));
+        Files.write(root.resolve("index.md"), "index".getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("a/one.md"), "one".getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("a/b/two.md"), "two".getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("target/out.md"), "out".getBytes(StandardCharsets.UTF_8));
+        Path manifestFile = dir.resolve("manifest");
+        List<String> includes = Collections.singletonList("**.md");
+        List<String> excludes = Collections.singletonList("target");
+
+        SyncManifest manifest = SyncManifest.load(manifestFile);
+        SourceFilesChangeListBuilder changes = SourceFilesChangeListBuilder.create()
+                                        .addDirectory(root, "docs", includes, excludes, manifest);
+        assertEquals(new HashSet<>(Arrays.asList("docs/index.md", "docs/a/one.md", "docs/a/b/two.md")),
+                changes.getUpdates().keySet());
+        assertFalse(Files.exists(manifestFile));
+        changes.saveManifests();
+
+        manifest = SyncManifest.load(manifestFile);
+        assertEquals(3, manifest.size());
+        assertTrue(SourceFilesChangeListBuilder.create()
+                                        .addDirectory(root, "docs", includes, excludes, manifest).isEmpty());
+
+        Files.write(root.resolve("a/one.md"), "one!".getBytes(StandardCharsets.UTF_8));
+        Files.delete(root.resolve("a/b/two.md"));
+        changes = SourceFilesChangeListBuilder.create().addDirectory(root, "docs", includes, excludes, manifest);
+        assertEquals(Collections.singleton("docs/a/one.md"), changes.getUpdates().keySet());
+        assertEquals(Collections.singletonList("docs/a/b/two.md"), changes.getDeletions());
+        changes.saveManifests();
+        assertEquals(2, SyncManifest.load(manifestFile).size());
+    }
+
+    @Test
+    @DisplayName("Keep the manifest entries under an excluded directory")
+    void syncDirectoryWithExcludedEntries() throws IOException {
+        Path root = Files.createDirectories(dir.resolve("site"));
+        Files.createDirectories(root.resolve("target/classes"));
+        Files.write(root.resolve("index.md"), "index".getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("target/a.md"), "a".getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("target/classes/b.md"), "b".getBytes(StandardCharsets.UTF_8));
+        Path manifestFile = dir.resolve("manifest");
+        List<String> includes = Collections.singletonList("**.md");
+
+        // the files under target are committed before it is excluded
+        SyncManifest manifest = SyncManifest.load(manifestFile);
+        SourceFilesChangeListBuilder.create()
+                                        .addDirectory(root, "", includes, Collections.emptyList(), manifest)
+                                        .saveManifests();
+        assertEquals(3, manifest.size());
+
+        SourceFilesChangeListBuilder changes = SourceFilesChangeListBuilder.create()
+                                        .addDirectory(root, "", includes, Collections.singletonList("target"),
+                                                manifest);
+        assertTrue(changes.isEmpty());
+        assertEquals(Collections.emptyList(), changes.getDeletions());
+    }
+
+    @Test
+    @DisplayName("Drop the staging of a change list which is not committed")
+    void dropStagingOfFailedCommit() throws IOException {
+        Path root = Files.createDirectories(dir.resolve("site"));
+        Files.write(root.resolve("index.md"), "index".getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("draft.md"), "draft".getBytes(StandardCharsets.UTF_8));
+        Path manifestFile = dir.resolve("manifest");
+
+        SyncManifest manifest = SyncManifest.load(manifestFile);
+        // the commit of this change list fails, its manifest is never saved
+        SourceFilesChangeListBuilder.create().addDirectory(root, "", manifest);
+        Files.delete(root.resolve("draft.md"));
+        SourceFilesChangeListBuilder changes = SourceFilesChangeListBuilder.create().addDirectory(root, "", manifest);
+        assertEquals(Collections.singleton("index.md"), changes.getUpdates().keySet());
+        changes.saveManifests();
+
+        manifest = SyncManifest.load(manifestFile);
+        assertEquals(Collections.singleton("index.md"), manifest.getEntries().keySet());
+    }
+
+    private Path createFile(String name, int size) throws IOException {
+        return Files.write(dir.resolve(name), new byte[size]);
+    }
+}